@@ -0,0 +1,78 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.friend.FriendPojo;
+import guru.bubl.module.model.friend.FriendStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+@State(Scope.Benchmark)
+public class FriendManagerBenchmark {
+
+    @Param({"10000"})
+    public Integer numberOfUsers;
+
+    @Param({"100000"})
+    public Integer numberOfFriendships;
+
+    private EmbeddedNeo4j neo4j;
+
+    private FriendManagerNeo4j[] friendManagers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        neo4j = new EmbeddedNeo4j();
+        neo4j.seedUsers(numberOfUsers);
+        neo4j.seedFriendships(numberOfUsers, numberOfFriendships);
+        friendManagers = new FriendManagerNeo4j[numberOfUsers];
+        for (int i = 0; i < numberOfUsers; i++) {
+            friendManagers[i] = neo4j.friendManager(
+                    EmbeddedNeo4j.user(i)
+            );
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        neo4j.close();
+    }
+
+    @Benchmark
+    public String add() {
+        return randomFriendManager().add(
+                EmbeddedNeo4j.user(randomUserIndex())
+        );
+    }
+
+    @Benchmark
+    public Map<URI, FriendPojo> list() {
+        return randomFriendManager().list();
+    }
+
+    @Benchmark
+    public FriendStatus getStatusWithUser() {
+        return randomFriendManager().getStatusWithUser(
+                EmbeddedNeo4j.user(randomUserIndex())
+        );
+    }
+
+    private FriendManagerNeo4j randomFriendManager() {
+        return friendManagers[randomUserIndex()];
+    }
+
+    private Integer randomUserIndex() {
+        return ThreadLocalRandom.current().nextInt(numberOfUsers);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendPojo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Users spread over one embedded database per partition, befriended
+ * across partitions.
+ */
+@State(Scope.Benchmark)
+public class PartitionedUserRepositoryBenchmark {
+
+    @Param({"10000"})
+    public Integer numberOfUsers;
+
+    @Param({"10000"})
+    public Integer numberOfFriendships;
+
+    @Param({"1", "3"})
+    public Integer numberOfPartitions;
+
+    private List<EmbeddedNeo4j> databases;
+
+    private PartitionedUserRepository userRepository;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        databases = new ArrayList<>();
+        List<UserPartition> partitions = new ArrayList<>();
+        for (int i = 0; i < numberOfPartitions; i++) {
+            EmbeddedNeo4j database = new EmbeddedNeo4j();
+            databases.add(database);
+            partitions.add(database.partition());
+        }
+        userRepository = new PartitionedUserRepository(partitions, true);
+        for (int i = 0; i < numberOfUsers; i++) {
+            userRepository.createUser(
+                    EmbeddedNeo4j.user(i)
+            );
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < numberOfFriendships; i++) {
+            User user = EmbeddedNeo4j.user(random.nextInt(numberOfUsers));
+            User friend = EmbeddedNeo4j.user(random.nextInt(numberOfUsers));
+            if (!user.username().equals(friend.username())) {
+                userRepository.friendManager(user).add(friend);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        userRepository.close();
+        for (EmbeddedNeo4j database : databases) {
+            database.close();
+        }
+    }
+
+    @Benchmark
+    public User findByUsername() {
+        return userRepository.findByUsername(
+                "user" + randomUserIndex()
+        );
+    }
+
+    @Benchmark
+    public User findByEmail() {
+        return userRepository.findByEmail(
+                "user" + randomUserIndex() + "@example.org"
+        );
+    }
+
+    @Benchmark
+    public List<User> searchUsers() {
+        return userRepository.searchUsers(
+                "user" + randomUserIndex() / 100,
+                null,
+                0,
+                UserRepositoryNeo4j.DEFAULT_SEARCH_LIMIT
+        );
+    }
+
+    @Benchmark
+    public Map<URI, FriendPojo> friendList() {
+        return userRepository.friendManager(
+                EmbeddedNeo4j.user(randomUserIndex())
+        ).list();
+    }
+
+    private Integer randomUserIndex() {
+        return ThreadLocalRandom.current().nextInt(numberOfUsers);
+    }
+}
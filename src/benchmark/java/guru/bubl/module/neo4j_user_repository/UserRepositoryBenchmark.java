@@ -0,0 +1,139 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+@State(Scope.Benchmark)
+public class UserRepositoryBenchmark {
+
+    @Param({"10000"})
+    public Integer numberOfUsers;
+
+    private EmbeddedNeo4j neo4j;
+
+    private UserRepositoryNeo4j userRepository;
+
+    private ExistenceFilteredUserRepository existenceFilteredUserRepository;
+
+    private final AtomicLong createdUsers = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        neo4j = new EmbeddedNeo4j();
+        neo4j.seedUsers(numberOfUsers);
+        userRepository = neo4j.userRepository();
+        existenceFilteredUserRepository = new ExistenceFilteredUserRepository(
+                userRepository,
+                new Neo4jSessions(neo4j.driver()),
+                0.01,
+                null
+        );
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        existenceFilteredUserRepository.close();
+        neo4j.close();
+    }
+
+    /*
+     * Queries reaching Neo4j compared to those the bloom filter answered,
+     * counted once per operation and reset every iteration.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class ExistenceFilterCounters {
+
+        public long queries;
+
+        public long avoidedQueries;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            queries = 0;
+            avoidedQueries = 0;
+        }
+    }
+
+    @Benchmark
+    public User createUser() {
+        Long index = numberOfUsers + createdUsers.getAndIncrement();
+        return userRepository.createUser(
+                User.withEmailAndUsername(
+                        "created" + index + "@example.org",
+                        "created" + index
+                )
+        );
+    }
+
+    @Benchmark
+    public User findByUsername() {
+        return userRepository.findByUsername(
+                "user" + randomUserIndex()
+        );
+    }
+
+    @Benchmark
+    public User findByEmail() {
+        return userRepository.findByEmail(
+                "user" + randomUserIndex() + "@example.org"
+        );
+    }
+
+    @Benchmark
+    public Boolean usernameExists() {
+        return userRepository.usernameExists(
+                "user" + randomUserIndex()
+        );
+    }
+
+    @Benchmark
+    public Boolean absentUsernameExists() {
+        return userRepository.usernameExists(
+                "absent" + randomUserIndex()
+        );
+    }
+
+    @Benchmark
+    public Boolean absentUsernameExistsFiltered(ExistenceFilterCounters counters) {
+        Long avoidedQueriesBefore = existenceFilteredUserRepository.getAvoidedQueries();
+        Boolean exists = existenceFilteredUserRepository.usernameExists(
+                "absent" + randomUserIndex()
+        );
+        if (existenceFilteredUserRepository.getAvoidedQueries() > avoidedQueriesBefore) {
+            counters.avoidedQueries++;
+        } else {
+            counters.queries++;
+        }
+        return exists;
+    }
+
+    @Benchmark
+    public List<User> searchUsers() {
+        return userRepository.searchUsers(
+                "user" + randomUserIndex() / 100,
+                null,
+                0,
+                UserRepositoryNeo4j.DEFAULT_SEARCH_LIMIT
+        );
+    }
+
+    private Integer randomUserIndex() {
+        return ThreadLocalRandom.current().nextInt(numberOfUsers);
+    }
+}
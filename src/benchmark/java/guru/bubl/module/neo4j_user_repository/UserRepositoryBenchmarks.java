@@ -0,0 +1,45 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs the benchmarks single threaded then with one thread per core,
+ * measuring throughput and sampled latencies, whose percentiles JMH
+ * reports, with the allocation rate from the GC profiler. Command line
+ * arguments are regular JMH options, -p numberOfUsers=100000 for example.
+ */
+public class UserRepositoryBenchmarks {
+
+    public static void main(String[] arguments) throws RunnerException, CommandLineOptionException {
+        Integer[] threadCounts = {1, Runtime.getRuntime().availableProcessors()};
+        for (Integer threads : threadCounts) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .parent(new CommandLineOptions(arguments))
+                    .include(UserRepositoryBenchmark.class.getSimpleName())
+                    .include(FriendManagerBenchmark.class.getSimpleName())
+                    .include(PartitionedUserRepositoryBenchmark.class.getSimpleName())
+                    .mode(Mode.Throughput)
+                    .mode(Mode.SampleTime)
+                    .timeUnit(TimeUnit.MICROSECONDS)
+                    .threads(threads)
+                    .forks(1)
+                    .warmupIterations(3)
+                    .measurementIterations(5)
+                    .addProfiler(GCProfiler.class);
+            new Runner(options.build()).run();
+        }
+    }
+}
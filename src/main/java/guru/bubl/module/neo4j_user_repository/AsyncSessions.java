@@ -0,0 +1,45 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.async.AsyncSession;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+final class AsyncSessions {
+
+    private AsyncSessions() {
+    }
+
+    /*
+     * Closes the session once the work completes, successfully or not. A
+     * failure is passed on unwrapped so callers see the exception the work
+     * threw, a NonExistingUserException for example.
+     */
+    static <T> CompletionStage<T> withSession(AsyncSession session, Function<AsyncSession, CompletionStage<T>> work) {
+        CompletionStage<T> stage;
+        try {
+            stage = work.apply(session);
+        } catch (RuntimeException exception) {
+            stage = CompletableFuture.failedFuture(exception);
+        }
+        return stage.handle(
+                (result, error) -> session.closeAsync().thenCompose(
+                        ignored -> error == null ?
+                                CompletableFuture.completedFuture(result) :
+                                CompletableFuture.<T>failedFuture(unwrap(error))
+                )
+        ).thenCompose(Function.identity());
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ?
+                error.getCause() :
+                error;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bloom filter over strings. mightContain never answers false for a value
+ * that was added, it answers true for a value that was not added with
+ * about the false positive rate it was sized for.
+ */
+class BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    private final Long numberOfBits;
+
+    private final Integer numberOfHashes;
+
+    BloomFilter(Long expectedInsertions, Double falsePositiveRate) {
+        Long expected = Math.max(1L, expectedInsertions);
+        this.numberOfBits = Math.max(
+                64L,
+                (long) (-expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)))
+        );
+        this.numberOfHashes = Math.max(
+                1,
+                (int) Math.round((double) numberOfBits / expected * Math.log(2))
+        );
+        this.bits = new AtomicLongArray(
+                (int) ((numberOfBits + 63) / 64)
+        );
+    }
+
+    void add(String value) {
+        long hash = hash(value);
+        long hash1 = mix(hash);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < numberOfHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numberOfBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    Boolean mightContain(String value) {
+        long hash = hash(value);
+        long hash1 = mix(hash);
+        long hash2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < numberOfHashes; i++) {
+            long bit = Math.floorMod(hash1 + i * hash2, numberOfBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    Long sizeInBytes() {
+        return bits.length() * 8L;
+    }
+
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
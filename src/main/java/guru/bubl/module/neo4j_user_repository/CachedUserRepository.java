@@ -0,0 +1,267 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.forgot_password.UserForgotPasswordToken;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import guru.bubl.module.repository.user.UserRepository;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Read-through cache in front of another UserRepository. An entry is
+ * reachable by username and by email, entries are evicted least recently
+ * used first once maxSize is reached and expire after the ttl. Writes
+ * going through this repository invalidate the entry. Entries keep their
+ * own copy of the user and every caller gets another copy, so changes
+ * callers make to their user never reach the cache. Get it from the
+ * injector for the hit, miss and eviction counters.
+ */
+public class CachedUserRepository implements UserRepository {
+
+    private final UserRepository userRepository;
+
+    private final Integer maxSize;
+
+    private final Long ttlInMillis;
+
+    private final LinkedHashMap<String, Entry> entriesByUsername;
+
+    private final Map<String, Entry> entriesByEmail = new HashMap<>();
+
+    private final AtomicLong hits = new AtomicLong(),
+            misses = new AtomicLong(),
+            evictions = new AtomicLong();
+
+    private Long writes = 0L;
+
+    private Long writesAtInvalidateAll = 0L;
+
+    private final Map<String, Long> writesAtInvalidation = new HashMap<>();
+
+    private Integer loadsInFlight = 0;
+
+    private static class Entry {
+        private final User user;
+        private final Long expirationTime;
+
+        private Entry(User user, Long expirationTime) {
+            this.user = user;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    public CachedUserRepository(UserRepository userRepository, Integer maxSize, Long ttl, TimeUnit ttlUnit) {
+        this.userRepository = userRepository;
+        this.maxSize = maxSize;
+        this.ttlInMillis = ttlUnit.toMillis(ttl);
+        this.entriesByUsername = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public User createUser(User user) {
+        return userRepository.createUser(user);
+    }
+
+    @Override
+    public User findByUsername(String username) throws NonExistingUserException {
+        Long writesBeforeLoad;
+        synchronized (this) {
+            Entry entry = validEntry(entriesByUsername.get(username));
+            if (entry != null) {
+                hits.incrementAndGet();
+                return UserHydrator.copy(entry.user);
+            }
+            writesBeforeLoad = startLoad();
+        }
+        misses.incrementAndGet();
+        User user = null;
+        try {
+            user = userRepository.findByUsername(username);
+            return user;
+        } finally {
+            endLoad(user, writesBeforeLoad);
+        }
+    }
+
+    @Override
+    public User findByEmail(String email) throws NonExistingUserException {
+        Long writesBeforeLoad;
+        synchronized (this) {
+            Entry entry = validEntry(entriesByEmail.get(email));
+            if (entry != null) {
+                // refreshes the least recently used order
+                entriesByUsername.get(entry.user.username());
+                hits.incrementAndGet();
+                return UserHydrator.copy(entry.user);
+            }
+            writesBeforeLoad = startLoad();
+        }
+        misses.incrementAndGet();
+        User user = null;
+        try {
+            user = userRepository.findByEmail(email);
+            return user;
+        } finally {
+            endLoad(user, writesBeforeLoad);
+        }
+    }
+
+    @Override
+    public Boolean usernameExists(String username) {
+        synchronized (this) {
+            if (validEntry(entriesByUsername.get(username)) != null) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        return userRepository.usernameExists(username);
+    }
+
+    @Override
+    public Boolean emailExists(String email) {
+        synchronized (this) {
+            if (validEntry(entriesByEmail.get(email)) != null) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        return userRepository.emailExists(email);
+    }
+
+    @Override
+    public void generateForgetPasswordToken(User user, UserForgotPasswordToken userForgotPasswordToken) {
+        userRepository.generateForgetPasswordToken(user, userForgotPasswordToken);
+        invalidate(user.username());
+    }
+
+    @Override
+    public UserForgotPasswordToken getUserForgetPasswordToken(User user) {
+        return userRepository.getUserForgetPasswordToken(user);
+    }
+
+    @Override
+    public void changePassword(User user) {
+        userRepository.changePassword(user);
+        invalidate(user.username());
+    }
+
+    @Override
+    public void updatePreferredLocales(User user) {
+        userRepository.updatePreferredLocales(user);
+        invalidate(user.username());
+    }
+
+    @Override
+    public Date updateConsultNotificationDate(User user) {
+        Date consultNotificationDate = userRepository.updateConsultNotificationDate(user);
+        invalidate(user.username());
+        return consultNotificationDate;
+    }
+
+    public List<User> searchUsers(String searchTerm, User user) {
+        return userRepository.searchUsers(searchTerm, user);
+    }
+
+    public synchronized void invalidate(String username) {
+        writes++;
+        if (loadsInFlight > 0) {
+            writesAtInvalidation.put(username, writes);
+        }
+        Entry entry = entriesByUsername.remove(username);
+        if (entry != null) {
+            entriesByEmail.remove(entry.user.email());
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        writes++;
+        writesAtInvalidateAll = writes;
+        entriesByUsername.clear();
+        entriesByEmail.clear();
+    }
+
+    public Long getHits() {
+        return hits.get();
+    }
+
+    public Long getMisses() {
+        return misses.get();
+    }
+
+    public Long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized Integer size() {
+        return entriesByUsername.size();
+    }
+
+    private Long startLoad() {
+        loadsInFlight++;
+        return writes;
+    }
+
+    /*
+     * A load that started before a write to its user is not cached since it
+     * may have read the value the write replaced. Writes are only
+     * remembered by user while loads are in flight.
+     */
+    private synchronized void endLoad(User user, Long writesBeforeLoad) {
+        loadsInFlight--;
+        Boolean cacheable = user != null &&
+                writesAtInvalidateAll <= writesBeforeLoad &&
+                writesAtInvalidation.getOrDefault(user.username(), 0L) <= writesBeforeLoad;
+        if (loadsInFlight == 0) {
+            writesAtInvalidation.clear();
+        }
+        if (cacheable) {
+            put(user);
+        }
+    }
+
+    private void put(User user) {
+        Entry previous = entriesByUsername.remove(user.username());
+        if (previous != null) {
+            entriesByEmail.remove(previous.user.email());
+        }
+        Entry entry = new Entry(
+                UserHydrator.copy(user),
+                System.currentTimeMillis() + ttlInMillis
+        );
+        entriesByUsername.put(user.username(), entry);
+        entriesByEmail.put(user.email(), entry);
+        Iterator<Entry> leastRecentlyUsed = entriesByUsername.values().iterator();
+        while (entriesByUsername.size() > maxSize) {
+            Entry evicted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            entriesByEmail.remove(evicted.user.email());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private Entry validEntry(Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expirationTime > System.currentTimeMillis()) {
+            return entry;
+        }
+        entriesByUsername.remove(entry.user.username(), entry);
+        entriesByEmail.remove(entry.user.email(), entry);
+        evictions.incrementAndGet();
+        return null;
+    }
+}
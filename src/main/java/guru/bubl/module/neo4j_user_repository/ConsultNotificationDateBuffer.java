@@ -0,0 +1,129 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.Session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Keeps the latest consult notification date of each user and writes them
+ * in UNWIND transactions of DEFAULT_BATCH_SIZE dates every flush interval
+ * and when closed, UserRepositoryLifecycle closes it when the application
+ * or the JVM stops. Until flushed a user read from the database still has
+ * the previous date. Without a flush interval dates are not buffered.
+ */
+public class ConsultNotificationDateBuffer implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ConsultNotificationDateBuffer.class.getName());
+
+    private static final String FLUSH_QUERY = "UNWIND $dates as date " +
+            "MATCH(user:Resource{uri:date.uri}) " +
+            "SET user.consultNotificationDate = CASE " +
+            "WHEN user.consultNotificationDate IS NULL OR user.consultNotificationDate < date.date " +
+            "THEN date.date ELSE user.consultNotificationDate END";
+
+    private final Neo4jSessions sessions;
+
+    private final Map<String, Long> pendingDates = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flusher;
+
+    public ConsultNotificationDateBuffer(Neo4jSessions sessions, Long flushIntervalInMillis) {
+        this.sessions = sessions;
+        if (flushIntervalInMillis == null) {
+            this.flusher = null;
+            return;
+        }
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "consult-notification-date-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(
+                this::flushQuietly,
+                flushIntervalInMillis,
+                flushIntervalInMillis,
+                TimeUnit.MILLISECONDS
+        );
+    }
+
+    public Boolean isEnabled() {
+        return flusher != null;
+    }
+
+    public void put(String userUri, Long date) {
+        pendingDates.merge(userUri, date, Math::max);
+    }
+
+    public Integer numberOfPendingDates() {
+        return pendingDates.size();
+    }
+
+    public synchronized void flush() {
+        if (pendingDates.isEmpty()) {
+            return;
+        }
+        Map<String, Long> flushed = new HashMap<>(pendingDates);
+        List<Map<String, Object>> dates = new ArrayList<>(UserRepositoryNeo4j.DEFAULT_BATCH_SIZE);
+        try (Session session = sessions.write()) {
+            for (Map.Entry<String, Long> pendingDate : flushed.entrySet()) {
+                Map<String, Object> date = new HashMap<>();
+                date.put("uri", pendingDate.getKey());
+                date.put("date", pendingDate.getValue());
+                dates.add(date);
+                if (dates.size() == UserRepositoryNeo4j.DEFAULT_BATCH_SIZE) {
+                    flushChunk(session, dates);
+                    dates = new ArrayList<>(UserRepositoryNeo4j.DEFAULT_BATCH_SIZE);
+                }
+            }
+            if (!dates.isEmpty()) {
+                flushChunk(session, dates);
+            }
+        }
+    }
+
+    private void flushChunk(Session session, List<Map<String, Object>> dates) {
+        session.writeTransaction(
+                tx -> tx.run(
+                        FLUSH_QUERY,
+                        parameters(
+                                "dates", dates
+                        )
+                ).consume()
+        );
+        for (Map<String, Object> date : dates) {
+            pendingDates.remove(date.get("uri"), date.get("date"));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flusher == null || flusher.isShutdown()) {
+            return;
+        }
+        flusher.shutdown();
+        flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.WARNING, "Could not flush consult notification dates", exception);
+        }
+    }
+}
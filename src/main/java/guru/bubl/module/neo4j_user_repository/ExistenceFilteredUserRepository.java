@@ -0,0 +1,232 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.UserUris;
+import guru.bubl.module.model.forgot_password.UserForgotPasswordToken;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import guru.bubl.module.repository.user.UserRepository;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Answers usernameExists and emailExists without querying when a bloom
+ * filter over the uris and emails of all users rules the value out. The
+ * filter is built by streaming the User nodes and learns about users
+ * created through this repository and, through UserRepositoryLifecycle,
+ * those created in batches by UserRepositoryNeo4j. It is rebuilt every
+ * rebuildPeriodInSeconds, DEFAULT_REBUILD_PERIOD_IN_SECONDS when null, to
+ * catch users created by other processes, and as soon as the users added
+ * since the last rebuild fill the room it was sized with so the false
+ * positive rate stays as asked. Until then a user created by another
+ * process is reported missing.
+ */
+public class ExistenceFilteredUserRepository implements UserRepository, AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ExistenceFilteredUserRepository.class.getName());
+
+    public static final Long DEFAULT_REBUILD_PERIOD_IN_SECONDS = 600L;
+
+    private static final Double GROWTH_FACTOR = 2.0;
+
+    private final UserRepository userRepository;
+
+    private final Neo4jSessions sessions;
+
+    private final Double falsePositiveRate;
+
+    private final ScheduledExecutorService rebuilder;
+
+    private final AtomicLong insertions = new AtomicLong();
+
+    private volatile Long capacity;
+
+    private volatile BloomFilter uris, emails;
+
+    private volatile BloomFilter rebuildingUris, rebuildingEmails;
+
+    private final AtomicLong avoidedQueries = new AtomicLong(),
+            queries = new AtomicLong();
+
+    public ExistenceFilteredUserRepository(UserRepository userRepository, Neo4jSessions sessions, Double falsePositiveRate, Long rebuildPeriodInSeconds) {
+        this.userRepository = userRepository;
+        this.sessions = sessions;
+        this.falsePositiveRate = falsePositiveRate;
+        rebuild();
+        this.rebuilder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "existence-filter-rebuilder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (rebuildPeriodInSeconds == null) {
+            rebuildPeriodInSeconds = DEFAULT_REBUILD_PERIOD_IN_SECONDS;
+        }
+        this.rebuilder.scheduleWithFixedDelay(
+                this::rebuildQuietly,
+                rebuildPeriodInSeconds,
+                rebuildPeriodInSeconds,
+                TimeUnit.SECONDS
+        );
+    }
+
+    public synchronized void rebuild() {
+        try (Session session = sessions.read()) {
+            Long numberOfUsers = session.run(
+                    "MATCH(user:User) RETURN count(user) as number"
+            ).single().get("number").asLong();
+            Long expectedInsertions = Math.max(
+                    (long) (numberOfUsers * GROWTH_FACTOR),
+                    1000L
+            );
+            rebuildingUris = new BloomFilter(expectedInsertions, falsePositiveRate);
+            rebuildingEmails = new BloomFilter(expectedInsertions, falsePositiveRate);
+            Result sr = session.run(
+                    "MATCH(user:User) RETURN user.uri as uri, user.email as email"
+            );
+            while (sr.hasNext()) {
+                Record record = sr.next();
+                rebuildingUris.add(record.get("uri").asString());
+                rebuildingEmails.add(record.get("email").asString());
+            }
+            uris = rebuildingUris;
+            emails = rebuildingEmails;
+            insertions.set(numberOfUsers);
+            capacity = expectedInsertions;
+        } finally {
+            rebuildingUris = null;
+            rebuildingEmails = null;
+        }
+    }
+
+    @Override
+    public User createUser(User user) {
+        User created = userRepository.createUser(user);
+        add(user);
+        return created;
+    }
+
+    @Override
+    public User findByUsername(String username) throws NonExistingUserException {
+        return userRepository.findByUsername(username);
+    }
+
+    @Override
+    public User findByEmail(String email) throws NonExistingUserException {
+        return userRepository.findByEmail(email);
+    }
+
+    @Override
+    public Boolean usernameExists(String username) {
+        if (username.trim().equals("")) {
+            return false;
+        }
+        if (!uris.mightContain(new UserUris(username).baseUri().toString())) {
+            avoidedQueries.incrementAndGet();
+            return false;
+        }
+        queries.incrementAndGet();
+        return userRepository.usernameExists(username);
+    }
+
+    @Override
+    public Boolean emailExists(String email) {
+        if (email.trim().equals("")) {
+            return false;
+        }
+        if (!emails.mightContain(email)) {
+            avoidedQueries.incrementAndGet();
+            return false;
+        }
+        queries.incrementAndGet();
+        return userRepository.emailExists(email);
+    }
+
+    @Override
+    public void generateForgetPasswordToken(User user, UserForgotPasswordToken userForgotPasswordToken) {
+        userRepository.generateForgetPasswordToken(user, userForgotPasswordToken);
+    }
+
+    @Override
+    public UserForgotPasswordToken getUserForgetPasswordToken(User user) {
+        return userRepository.getUserForgetPasswordToken(user);
+    }
+
+    @Override
+    public void changePassword(User user) {
+        userRepository.changePassword(user);
+    }
+
+    @Override
+    public void updatePreferredLocales(User user) {
+        userRepository.updatePreferredLocales(user);
+    }
+
+    @Override
+    public Date updateConsultNotificationDate(User user) {
+        return userRepository.updateConsultNotificationDate(user);
+    }
+
+    public List<User> searchUsers(String searchTerm, User user) {
+        return userRepository.searchUsers(searchTerm, user);
+    }
+
+    public Long getAvoidedQueries() {
+        return avoidedQueries.get();
+    }
+
+    public Long getQueries() {
+        return queries.get();
+    }
+
+    public Long sizeInBytes() {
+        return uris.sizeInBytes() + emails.sizeInBytes();
+    }
+
+    @Override
+    public void close() {
+        rebuilder.shutdownNow();
+    }
+
+    private void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.WARNING, "Could not rebuild the existence filter", exception);
+        }
+    }
+
+    /*
+     * A user created while rebuilding is added to both filters, the one
+     * being built may have streamed the nodes before the user was created.
+     * The filters being built are read first so that a rebuild completing
+     * in between still leaves the user in the current filters.
+     */
+    void add(User user) {
+        BloomFilter rebuildingUris = this.rebuildingUris;
+        BloomFilter rebuildingEmails = this.rebuildingEmails;
+        if (rebuildingUris != null) {
+            rebuildingUris.add(user.id());
+        }
+        if (rebuildingEmails != null) {
+            rebuildingEmails.add(user.email());
+        }
+        uris.add(user.id());
+        emails.add(user.email());
+        if (insertions.incrementAndGet() == capacity) {
+            rebuilder.execute(this::rebuildQuietly);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.Session;
+
+import javax.inject.Inject;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Periodically clears the password reset tokens that expired. Each
+ * transaction clears at most batchSize tokens so the write locks it takes
+ * are released quickly, a run goes on until a batch comes back short.
+ * UserRepositoryLifecycle starts it and closes it.
+ */
+public class ForgetPasswordTokenSweeper implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ForgetPasswordTokenSweeper.class.getName());
+
+    private static final String SWEEP_QUERY = "MATCH(user:User) " +
+            "WHERE user." + UserRepositoryNeo4j.props.changePasswordExpirationDate + " < $now " +
+            "WITH user LIMIT $batchSize " +
+            "REMOVE user." + UserRepositoryNeo4j.props.forgetPasswordToken +
+            ", user." + UserRepositoryNeo4j.props.changePasswordExpirationDate + " " +
+            "RETURN count(user) as number";
+
+    private final Long periodInSeconds;
+
+    private final Integer batchSize;
+
+    private final AtomicLong lastRunCleared = new AtomicLong(),
+            totalCleared = new AtomicLong();
+
+    private Neo4jSessions sessions;
+
+    private ScheduledExecutorService sweeper;
+
+    public ForgetPasswordTokenSweeper(Long periodInSeconds, Integer batchSize) {
+        if (periodInSeconds == null || periodInSeconds <= 0) {
+            throw new IllegalArgumentException(
+                    "periodInSeconds must be positive"
+            );
+        }
+        if (batchSize == null || batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "batchSize must be at least 1"
+            );
+        }
+        this.periodInSeconds = periodInSeconds;
+        this.batchSize = batchSize;
+    }
+
+    @Inject
+    void setSessions(Neo4jSessions sessions) {
+        this.sessions = sessions;
+    }
+
+    public synchronized void start() {
+        if (sweeper != null) {
+            return;
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "forget-password-token-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleWithFixedDelay(
+                this::sweepQuietly,
+                periodInSeconds,
+                periodInSeconds,
+                TimeUnit.SECONDS
+        );
+    }
+
+    public synchronized Long sweep() {
+        Long now = new Date().getTime();
+        Long cleared = 0L;
+        Long clearedInBatch;
+        do {
+            try (Session session = sessions.write()) {
+                clearedInBatch = session.writeTransaction(
+                        tx -> tx.run(
+                                SWEEP_QUERY,
+                                parameters(
+                                        "now", now,
+                                        "batchSize", batchSize
+                                )
+                        ).single().get("number").asLong()
+                );
+            }
+            cleared += clearedInBatch;
+        } while (clearedInBatch.equals(batchSize.longValue()));
+        lastRunCleared.set(cleared);
+        totalCleared.addAndGet(cleared);
+        LOGGER.info("Cleared " + cleared + " expired forget password tokens");
+        return cleared;
+    }
+
+    public Long getLastRunCleared() {
+        return lastRunCleared.get();
+    }
+
+    public Long getTotalCleared() {
+        return totalCleared.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+    }
+
+    private void sweepQuietly() {
+        try {
+            sweep();
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.WARNING, "Could not sweep expired forget password tokens", exception);
+        }
+    }
+}
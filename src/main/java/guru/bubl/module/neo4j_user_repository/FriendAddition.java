@@ -0,0 +1,31 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.friend.FriendStatus;
+
+/*
+ * Friend status after adding a friend and the confirm token of the request
+ * when one was created.
+ */
+public class FriendAddition {
+
+    private final FriendStatus status;
+
+    private final String confirmToken;
+
+    FriendAddition(FriendStatus status, String confirmToken) {
+        this.status = status;
+        this.confirmToken = confirmToken;
+    }
+
+    public FriendStatus getStatus() {
+        return status;
+    }
+
+    public String getConfirmToken() {
+        return confirmToken;
+    }
+}
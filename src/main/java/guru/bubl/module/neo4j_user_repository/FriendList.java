@@ -0,0 +1,60 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.friend.FriendStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Friends of a user as parallel username and status arrays, ordered by
+ * friend uri. Lighter than the URI keyed FriendPojo map for callers that
+ * only need usernames and statuses.
+ */
+public class FriendList {
+
+    private final String[] usernames;
+
+    private final FriendStatus[] statuses;
+
+    FriendList(List<String> usernames, List<FriendStatus> statuses) {
+        this.usernames = usernames.toArray(new String[0]);
+        this.statuses = statuses.toArray(new FriendStatus[0]);
+    }
+
+    public Integer size() {
+        return usernames.length;
+    }
+
+    public String getUsername(Integer index) {
+        return usernames[index];
+    }
+
+    public FriendStatus getStatus(Integer index) {
+        return statuses[index];
+    }
+
+    /*
+     * A null status keeps friends of every status.
+     */
+    public FriendList page(Integer offset, Integer limit, FriendStatus statusFilter) {
+        List<String> pageUsernames = new ArrayList<>(Math.min(limit, usernames.length));
+        List<FriendStatus> pageStatuses = new ArrayList<>(Math.min(limit, usernames.length));
+        Integer skipped = 0;
+        for (int i = 0; i < usernames.length && pageUsernames.size() < limit; i++) {
+            if (statusFilter != null && statuses[i] != statusFilter) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            pageUsernames.add(usernames[i]);
+            pageStatuses.add(statuses[i]);
+        }
+        return new FriendList(pageUsernames, pageStatuses);
+    }
+}
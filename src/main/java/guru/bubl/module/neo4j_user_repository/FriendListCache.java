@@ -0,0 +1,94 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Complete friend lists by user uri, shared by the friend managers of all
+ * users. Least recently used lists are evicted once maxSize is reached and
+ * lists expire after the ttl. A maxSize of 0 disables the cache.
+ */
+public class FriendListCache {
+
+    private final Integer maxSize;
+
+    private final Long ttlInMillis;
+
+    private final LinkedHashMap<String, CachedFriendList> entries;
+
+    private Long generation = 0L;
+
+    private static class CachedFriendList {
+        private final FriendList friendList;
+        private final Long expirationTime;
+
+        private CachedFriendList(FriendList friendList, Long expirationTime) {
+            this.friendList = friendList;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    public static FriendListCache disabled() {
+        return new FriendListCache(0, 0L, TimeUnit.SECONDS);
+    }
+
+    public FriendListCache(Integer maxSize, Long ttl, TimeUnit ttlUnit) {
+        this.maxSize = maxSize;
+        this.ttlInMillis = ttlUnit.toMillis(ttl);
+        this.entries = new LinkedHashMap<String, CachedFriendList>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedFriendList> eldest) {
+                return size() > FriendListCache.this.maxSize;
+            }
+        };
+    }
+
+    public Boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public synchronized FriendList get(String userUri) {
+        CachedFriendList entry = entries.get(userUri);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expirationTime <= System.currentTimeMillis()) {
+            entries.remove(userUri);
+            return null;
+        }
+        return entry.friendList;
+    }
+
+    public synchronized Long generation() {
+        return generation;
+    }
+
+    /*
+     * A list loaded before an invalidation is not cached since it may miss
+     * the change that caused the invalidation.
+     */
+    public synchronized void put(String userUri, FriendList friendList, Long generationBeforeLoad) {
+        if (!isEnabled() || !generation.equals(generationBeforeLoad)) {
+            return;
+        }
+        entries.put(
+                userUri,
+                new CachedFriendList(
+                        friendList,
+                        System.currentTimeMillis() + ttlInMillis
+                )
+        );
+    }
+
+    public synchronized void invalidate(String... userUris) {
+        generation++;
+        for (String userUri : userUris) {
+            entries.remove(userUri);
+        }
+    }
+}
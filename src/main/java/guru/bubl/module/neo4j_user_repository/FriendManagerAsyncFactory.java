@@ -0,0 +1,11 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+
+public interface FriendManagerAsyncFactory {
+    FriendManagerNeo4jAsync forUser(User user);
+}
@@ -12,6 +12,7 @@ import guru.bubl.module.model.UserUris;
 import guru.bubl.module.model.friend.FriendManager;
 import guru.bubl.module.model.friend.FriendPojo;
 import guru.bubl.module.model.friend.FriendStatus;
+import guru.bubl.module.repository.user.NonExistingUserException;
 import org.apache.commons.lang.RandomStringUtils;
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.Record;
@@ -19,16 +20,78 @@ import org.neo4j.driver.Session;
 import org.neo4j.driver.Result;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import static org.neo4j.driver.Values.parameters;
 
 public class FriendManagerNeo4j implements FriendManager {
 
+    private static final String ADD_QUERY = "MATCH(user:Resource{uri:$uri}), (friend:Resource{uri:$friendUri}) " +
+            "FOREACH(node IN CASE WHEN user.uri < friend.uri THEN [user, friend] ELSE [friend, user] END | " +
+            "SET node.friendLock = true REMOVE node.friendLock) " +
+            "WITH user, friend " +
+            "OPTIONAL MATCH (user)-[friendRequest:friend]->(friend) " +
+            "OPTIONAL MATCH (friend)-[friendInvitation:friend]->(user) " +
+            "WITH user, friend, friendInvitation, " +
+            "CASE " +
+            "WHEN friendRequest IS NOT NULL THEN friendRequest.status " +
+            "WHEN friendInvitation IS NULL THEN '" + FriendStatus.none + "' " +
+            "WHEN friendInvitation.status = '" + FriendStatus.waiting + "' THEN '" + FriendStatus.waitingForYourAnswer + "' " +
+            "ELSE friendInvitation.status END as previousStatus " +
+            "FOREACH(ignored IN CASE WHEN previousStatus = '" + FriendStatus.none + "' THEN [1] ELSE [] END | " +
+            "MERGE (user)-[friendship:friend]->(friend) " +
+            "SET friendship.status='" + FriendStatus.waiting + "', friendship.confirmToken=$confirmToken) " +
+            "FOREACH(ignored IN CASE WHEN previousStatus = '" + FriendStatus.waitingForYourAnswer + "' THEN [1] ELSE [] END | " +
+            "SET friendInvitation.status='" + FriendStatus.confirmed + "') " +
+            "RETURN previousStatus",
+            EXISTS_QUERY = "MATCH(user:Resource{uri:$uri}) RETURN user.uri";
+
+    static final String LIST_QUERY = "MATCH(user:Resource{uri:$uri}), " +
+            "(user)-[friendship:friend]-(friend) " +
+            "WHERE $status IS NULL OR friendship.status = $status " +
+            "RETURN friend.uri as uri, friend.username as username, friendship.status as status " +
+            "ORDER BY uri",
+            STATUS_QUERY = "MATCH(user:Resource{uri:$uri}) " +
+                    "WITH user " +
+                    "MATCH (friend:Resource{uri:$friendUri}) " +
+                    "OPTIONAL MATCH (user)-[friendRequest:friend]->(friend) " +
+                    "OPTIONAL MATCH (friend)-[friendInvitation:friend]->(user) " +
+                    "RETURN friendRequest.status as friendRequestStatus, " +
+                    "friendInvitation.status as friendInvitationStatus",
+            CONFIRMED_FRIENDS_QUERY = "UNWIND $uris as uri " +
+                    "MATCH(user:Resource{uri:uri}) " +
+                    "OPTIONAL MATCH (user)-[friendship:friend]-(friend) " +
+                    "WHERE friendship.status = '" + FriendStatus.confirmed + "' " +
+                    "RETURN uri, collect(friend.uri) as friendUris",
+            STATUSES_QUERY = "MATCH(user:Resource{uri:$uri}) " +
+                    "UNWIND $friendUris as friendUri " +
+                    "MATCH (friend:Resource{uri:friendUri}) " +
+                    "OPTIONAL MATCH (user)-[friendRequest:friend]->(friend) " +
+                    "OPTIONAL MATCH (friend)-[friendInvitation:friend]->(user) " +
+                    "RETURN friendUri, friendRequest.status as friendRequestStatus, " +
+                    "friendInvitation.status as friendInvitationStatus";
+
     @Inject
     Driver driver;
 
+    @Inject
+    Neo4jSessions sessions;
+
+    @Inject
+    FriendListCache friendListCache;
+
+    @Inject
+    InFlightLookups inFlightLookups;
+
+    @Inject
+    FriendSuggestionIndex friendSuggestionIndex;
+
     private User user;
 
     @AssistedInject
@@ -41,76 +104,244 @@ public class FriendManagerNeo4j implements FriendManager {
 
     @Override
     public String add(User newFriend) {
+        return addAndGetStatus(newFriend).getConfirmToken();
+    }
+
+    /*
+     * Reads the status and applies the transition in one transaction,
+     * none becomes waiting, waitingForYourAnswer becomes confirmed and other
+     * statuses are left as is. Both users are locked in uri order first so
+     * two users adding each other at the same time do not both create a
+     * waiting request. The transaction function retries deadlocks and other
+     * transient errors. Throws NonExistingUserException with the username
+     * of the user missing.
+     */
+    public FriendAddition addAndGetStatus(User newFriend) {
         String confirmToken = RandomStringUtils.randomAlphanumeric(
                 30
         );
-        FriendStatus friendStatus = this.getStatusWithUser(newFriend);
-        if (friendStatus == FriendStatus.waitingForYourAnswer) {
-            this.confirm(newFriend);
-            return null;
+        FriendStatus previousStatus;
+        try (Neo4jSessions.BookmarkScope scope = sessions.scope()) {
+            try (Session session = sessions.write()) {
+                previousStatus = session.writeTransaction(tx -> {
+                    Result sr = tx.run(
+                            ADD_QUERY,
+                            parameters(
+                                    "uri", user.id(),
+                                    "friendUri", newFriend.id(),
+                                    "confirmToken", confirmToken
+                            )
+                    );
+                    if (!sr.hasNext()) {
+                        Boolean userExists = tx.run(
+                                EXISTS_QUERY,
+                                parameters(
+                                        "uri", user.id()
+                                )
+                        ).hasNext();
+                        throw new NonExistingUserException(
+                                userExists ? newFriend.username() : user.username()
+                        );
+                    }
+                    return FriendStatus.valueOf(sr.single().get("previousStatus").asString());
+                });
+            }
+            friendListCache.invalidate(user.id(), newFriend.id());
+            inFlightLookups.forgetFriends(user.id(), newFriend.id());
+            if (previousStatus == FriendStatus.waitingForYourAnswer) {
+                indexConfirmed(newFriend);
+            }
         }
-        if (friendStatus != FriendStatus.none) {
-            return null;
+        if (previousStatus == FriendStatus.none) {
+            return new FriendAddition(
+                    FriendStatus.waiting,
+                    confirmToken
+            );
         }
-        try (Session session = driver.session()) {
-            session.run(
-                    "MATCH(user:Resource{uri:$uri}), (otherUser:Resource{uri:$friendUri}) MERGE (user)-[friendship:friend]->(otherUser) SET friendship.status=$status, friendship.confirmToken=$confirmToken",
-                    parameters(
-                            "uri", user.id(),
-                            "friendUri", newFriend.id(),
-                            "status", FriendStatus.waiting.name(),
-                            "confirmToken", confirmToken
-                    )
+        if (previousStatus == FriendStatus.waitingForYourAnswer) {
+            return new FriendAddition(
+                    FriendStatus.confirmed,
+                    null
             );
-            return confirmToken;
         }
+        return new FriendAddition(
+                previousStatus,
+                null
+        );
     }
 
     @Override
     public FriendManager confirm(User newFriend) {
-        try (Session session = driver.session()) {
-            session.run(
+        try (Neo4jSessions.BookmarkScope scope = sessions.scope()) {
+            confirmInScope(newFriend);
+        }
+        return this;
+    }
+
+    private void confirmInScope(User newFriend) {
+        Boolean newlyConfirmed;
+        try (Session session = sessions.write()) {
+            Result sr = session.run(
                     "MATCH(user:Resource{uri:$uri}) WITH user " +
                             "MATCH(newFriend:Resource{uri:$friendUri}), " +
                             "(user)<-[friendship:friend]-(newFriend) " +
-                            "SET friendship.status=$status",
+                            "WITH friendship, friendship.status as previousStatus " +
+                            "SET friendship.status=$status " +
+                            "RETURN previousStatus",
                     parameters(
                             "uri", user.id(),
                             "friendUri", newFriend.id(),
                             "status", FriendStatus.confirmed.name()
                     )
             );
-            return this;
+            newlyConfirmed = sr.hasNext() &&
+                    !FriendStatus.confirmed.name().equals(sr.single().get("previousStatus").asString());
+            friendListCache.invalidate(user.id(), newFriend.id());
+            inFlightLookups.forgetFriends(user.id(), newFriend.id());
+        }
+        if (newlyConfirmed) {
+            indexConfirmed(newFriend);
         }
     }
 
     @Override
     public Boolean confirmWithToken(User newFriend, String confirmToken) {
-        try (Session session = driver.session()) {
-            return session.run(
+        try (Neo4jSessions.BookmarkScope scope = sessions.scope()) {
+            return confirmWithTokenInScope(newFriend, confirmToken);
+        }
+    }
+
+    private Boolean confirmWithTokenInScope(User newFriend, String confirmToken) {
+        Boolean confirmed;
+        Boolean newlyConfirmed;
+        try (Session session = sessions.write()) {
+            Result sr = session.run(
                     "MATCH(user:Resource{uri:$uri}) WITH user " +
                             "MATCH(newFriend:Resource{uri:$friendUri}), " +
                             "(user)<-[friendship:friend]-(newFriend) " +
                             "WHERE friendship.confirmToken=$confirmToken " +
+                            "WITH friendship, friendship.status as previousStatus " +
                             "SET friendship.status=$status " +
-                            "RETURN friendship.status ",
+                            "RETURN previousStatus",
                     parameters(
                             "uri", user.id(),
                             "friendUri", newFriend.id(),
                             "confirmToken", confirmToken,
                             "status", FriendStatus.confirmed.name()
                     )
-            ).hasNext();
+            );
+            confirmed = sr.hasNext();
+            newlyConfirmed = confirmed &&
+                    !FriendStatus.confirmed.name().equals(sr.single().get("previousStatus").asString());
         }
+        friendListCache.invalidate(user.id(), newFriend.id());
+        inFlightLookups.forgetFriends(user.id(), newFriend.id());
+        if (newlyConfirmed) {
+            indexConfirmed(newFriend);
+        }
+        return confirmed;
     }
 
+    /*
+     * Users with the most confirmed friends in common with this user,
+     * among those not already friends nor asked to be. Empty unless the
+     * friend suggestion index is enabled.
+     */
+    public List<FriendSuggestion> suggestions(Integer limit) {
+        List<FriendSuggestion> suggestions = new ArrayList<>();
+        List<Map.Entry<String, Integer>> candidates = friendSuggestionIndex.candidates(user.id());
+        if (candidates.isEmpty()) {
+            return suggestions;
+        }
+        List<User> candidateUsers = new ArrayList<>(candidates.size());
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            candidateUsers.add(
+                    User.withEmailAndUsername(
+                            "",
+                            UserUris.ownerUserNameFromUri(URI.create(candidate.getKey()))
+                    )
+            );
+        }
+        Map<URI, FriendStatus> statuses = getStatusWithUsers(candidateUsers);
+        for (int i = 0; i < candidates.size() && suggestions.size() < limit; i++) {
+            User candidateUser = candidateUsers.get(i);
+            if (statuses.get(URI.create(candidateUser.id())) == FriendStatus.none) {
+                suggestions.add(
+                        new FriendSuggestion(
+                                candidateUser.username(),
+                                candidates.get(i).getValue()
+                        )
+                );
+            }
+        }
+        return suggestions;
+    }
+
+    /*
+     * Reads the friends right after the confirmation was written, call it
+     * in a bookmark scope.
+     */
+    private void indexConfirmed(User newFriend) {
+        if (!friendSuggestionIndex.isEnabled()) {
+            return;
+        }
+        try (Session session = sessions.read()) {
+            Map<String, List<String>> confirmedFriends = confirmedFriendUris(
+                    session,
+                    user.id(),
+                    newFriend.id()
+            );
+            friendSuggestionIndex.confirmed(
+                    user.id(),
+                    confirmedFriends.get(user.id()),
+                    newFriend.id(),
+                    confirmedFriends.get(newFriend.id())
+            );
+        }
+    }
+
+    static Map<String, List<String>> confirmedFriendUris(Session session, String... uris) {
+        Map<String, List<String>> confirmedFriends = new HashMap<>();
+        for (String uri : uris) {
+            confirmedFriends.put(uri, new ArrayList<>());
+        }
+        Result sr = session.run(
+                CONFIRMED_FRIENDS_QUERY,
+                parameters(
+                        "uris", Arrays.asList(uris)
+                )
+        );
+        while (sr.hasNext()) {
+            Record record = sr.next();
+            confirmedFriends.get(record.get("uri").asString()).addAll(
+                    record.get("friendUris").asList(value -> value.asString())
+            );
+        }
+        return confirmedFriends;
+    }
+
+    /*
+     * Concurrent callers share one query when in flight lookups are
+     * enabled, each gets its own copy of the map.
+     */
     @Override
     public Map<URI, FriendPojo> list() {
+        return new HashMap<>(
+                inFlightLookups.load(
+                        inFlightLookups.friendsByUri,
+                        user.id(),
+                        sessions.lastBookmark(),
+                        this::loadFriends
+                )
+        );
+    }
+
+    private Map<URI, FriendPojo> loadFriends() {
         Map<URI, FriendPojo> friends = new HashMap<>();
         String query = "MATCH(user:Resource{uri:$uri}), " +
                 "(user)-[friendship:friend]-(friend) " +
                 "RETURN friend.uri as uri, friendship.status as status";
-        try (Session session = driver.session()) {
+        try (Session session = sessions.read()) {
             Result sr = session.run(
                     query,
                     parameters(
@@ -134,18 +365,81 @@ public class FriendManagerNeo4j implements FriendManager {
         }
     }
 
+    /*
+     * A null status filter keeps friends of every status. With the friend
+     * list cache enabled pages are sliced from the cached complete list.
+     */
+    public FriendList list(Integer offset, Integer limit, FriendStatus statusFilter) {
+        if (friendListCache.isEnabled()) {
+            return friendList().page(offset, limit, statusFilter);
+        }
+        return inFlightLookups.load(
+                inFlightLookups.friendListsByUri,
+                user.id(),
+                Arrays.asList(offset, limit, statusFilter, sessions.lastBookmark()),
+                () -> loadFriendList(
+                        " SKIP $skip LIMIT $limit",
+                        offset,
+                        limit,
+                        statusFilter
+                )
+        );
+    }
+
+    public FriendList friendList() {
+        FriendList friendList = friendListCache.get(user.id());
+        if (friendList != null) {
+            return friendList;
+        }
+        Long generationBeforeLoad = friendListCache.generation();
+        friendList = inFlightLookups.load(
+                inFlightLookups.friendListsByUri,
+                user.id(),
+                sessions.lastBookmark(),
+                () -> loadFriendList("", 0, 0, null)
+        );
+        friendListCache.put(user.id(), friendList, generationBeforeLoad);
+        return friendList;
+    }
+
+    private FriendList loadFriendList(String page, Integer offset, Integer limit, FriendStatus statusFilter) {
+        try (Session session = sessions.read()) {
+            return friendListFromRecords(
+                    session.run(
+                            LIST_QUERY + page,
+                            parameters(
+                                    "uri", user.id(),
+                                    "status", statusFilter == null ? null : statusFilter.name(),
+                                    "skip", offset,
+                                    "limit", limit
+                            )
+                    )
+            );
+        }
+    }
+
+    static FriendList friendListFromRecords(Iterator<Record> records) {
+        List<String> usernames = new ArrayList<>();
+        List<FriendStatus> statuses = new ArrayList<>();
+        while (records.hasNext()) {
+            Record record = records.next();
+            usernames.add(
+                    record.get("username").isNull() ?
+                            UserUris.ownerUserNameFromUri(URI.create(record.get("uri").asString())) :
+                            record.get("username").asString()
+            );
+            statuses.add(
+                    FriendStatus.valueOf(record.get("status").asString())
+            );
+        }
+        return new FriendList(usernames, statuses);
+    }
+
     @Override
     public FriendStatus getStatusWithUser(User otherUser) {
-        String query = "MATCH(user:Resource{uri:$uri}) " +
-                "WITH user " +
-                "MATCH (friend:Resource{uri:$friendUri}) " +
-                "OPTIONAL MATCH (user)-[friendRequest:friend]->(friend) " +
-                "OPTIONAL MATCH (friend)-[friendInvitation:friend]->(user) " +
-                "RETURN friendRequest.status as friendRequestStatus, " +
-                "friendInvitation.status as friendInvitationStatus";
-        try (Session session = driver.session()) {
+        try (Session session = sessions.read()) {
             Result sr = session.run(
-                    query,
+                    STATUS_QUERY,
                     parameters(
                             "uri", user.id(),
                             "friendUri", otherUser.id()
@@ -154,23 +448,61 @@ public class FriendManagerNeo4j implements FriendManager {
             if (!sr.hasNext()) {
                 return FriendStatus.none;
             }
-            Record record = sr.single();
-            Boolean isRequestUser = record.get("friendRequestStatus").asObject() != null;
-            if (!isRequestUser && record.get("friendInvitationStatus").asObject() == null) {
-                return FriendStatus.none;
-            }
-            FriendStatus friendStatus = isRequestUser ?
-                    FriendStatus.valueOf(
-                            record.get("friendRequestStatus").asString()
-                    ) :
-                    FriendStatus.valueOf(
-                            record.get("friendInvitationStatus").asString()
-                    );
+            return statusFromRecord(
+                    sr.single()
+            );
+        }
+    }
 
-            if (friendStatus == FriendStatus.waiting && !isRequestUser) {
-                return FriendStatus.waitingForYourAnswer;
+    /*
+     * Same statuses as getStatusWithUser for each user, in one query.
+     * Users that do not exist have the none status.
+     */
+    public Map<URI, FriendStatus> getStatusWithUsers(Collection<User> otherUsers) {
+        Map<URI, FriendStatus> statuses = new HashMap<>();
+        List<String> friendUris = new ArrayList<>(otherUsers.size());
+        for (User otherUser : otherUsers) {
+            friendUris.add(otherUser.id());
+            statuses.put(URI.create(otherUser.id()), FriendStatus.none);
+        }
+        if (friendUris.isEmpty()) {
+            return statuses;
+        }
+        try (Session session = sessions.read()) {
+            Result sr = session.run(
+                    STATUSES_QUERY,
+                    parameters(
+                            "uri", user.id(),
+                            "friendUris", friendUris
+                    )
+            );
+            while (sr.hasNext()) {
+                Record record = sr.next();
+                statuses.put(
+                        URI.create(record.get("friendUri").asString()),
+                        statusFromRecord(record)
+                );
             }
-            return friendStatus;
+            return statuses;
+        }
+    }
+
+    static FriendStatus statusFromRecord(Record record) {
+        Boolean isRequestUser = record.get("friendRequestStatus").asObject() != null;
+        if (!isRequestUser && record.get("friendInvitationStatus").asObject() == null) {
+            return FriendStatus.none;
+        }
+        FriendStatus friendStatus = isRequestUser ?
+                FriendStatus.valueOf(
+                        record.get("friendRequestStatus").asString()
+                ) :
+                FriendStatus.valueOf(
+                        record.get("friendInvitationStatus").asString()
+                );
+
+        if (friendStatus == FriendStatus.waiting && !isRequestUser) {
+            return FriendStatus.waitingForYourAnswer;
         }
+        return friendStatus;
     }
 }
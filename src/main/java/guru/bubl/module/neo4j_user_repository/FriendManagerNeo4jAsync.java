@@ -0,0 +1,110 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendStatus;
+import org.neo4j.driver.async.ResultCursor;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Non blocking counterpart of the reads of FriendManagerNeo4j.
+ */
+public class FriendManagerNeo4jAsync {
+
+    @Inject
+    Neo4jSessions sessions;
+
+    private User user;
+
+    @AssistedInject
+    protected FriendManagerNeo4jAsync(
+            @Assisted User user
+    ) {
+        this.user = user;
+    }
+
+    public CompletionStage<FriendList> list(Integer offset, Integer limit, FriendStatus statusFilter) {
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        FriendManagerNeo4j.LIST_QUERY + " SKIP $skip LIMIT $limit",
+                        parameters(
+                                "uri", user.id(),
+                                "status", statusFilter == null ? null : statusFilter.name(),
+                                "skip", offset,
+                                "limit", limit
+                        )
+                ).thenCompose(
+                        ResultCursor::listAsync
+                ).thenApply(
+                        records -> FriendManagerNeo4j.friendListFromRecords(records.iterator())
+                )
+        );
+    }
+
+    public CompletionStage<FriendStatus> getStatusWithUser(User otherUser) {
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        FriendManagerNeo4j.STATUS_QUERY,
+                        parameters(
+                                "uri", user.id(),
+                                "friendUri", otherUser.id()
+                        )
+                ).thenCompose(
+                        ResultCursor::listAsync
+                ).thenApply(
+                        records -> records.isEmpty() ?
+                                FriendStatus.none :
+                                FriendManagerNeo4j.statusFromRecord(records.get(0))
+                )
+        );
+    }
+
+    public CompletionStage<Map<URI, FriendStatus>> getStatusWithUsers(Collection<User> otherUsers) {
+        Map<URI, FriendStatus> statuses = new HashMap<>();
+        List<String> friendUris = new ArrayList<>(otherUsers.size());
+        for (User otherUser : otherUsers) {
+            friendUris.add(otherUser.id());
+            statuses.put(URI.create(otherUser.id()), FriendStatus.none);
+        }
+        if (friendUris.isEmpty()) {
+            return CompletableFuture.completedFuture(statuses);
+        }
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        FriendManagerNeo4j.STATUSES_QUERY,
+                        parameters(
+                                "uri", user.id(),
+                                "friendUris", friendUris
+                        )
+                ).thenCompose(
+                        cursor -> cursor.forEachAsync(
+                                record -> statuses.put(
+                                        URI.create(record.get("friendUri").asString()),
+                                        FriendManagerNeo4j.statusFromRecord(record)
+                                )
+                        )
+                ).thenApply(
+                        summary -> statuses
+                )
+        );
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+/*
+ * A user someone may know and the number of confirmed friends they have in
+ * common.
+ */
+public class FriendSuggestion {
+
+    private final String username;
+
+    private final Integer mutualFriends;
+
+    FriendSuggestion(String username, Integer mutualFriends) {
+        this.username = username;
+        this.mutualFriends = mutualFriends;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public Integer getMutualFriends() {
+        return mutualFriends;
+    }
+}
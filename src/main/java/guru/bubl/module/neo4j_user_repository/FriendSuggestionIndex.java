@@ -0,0 +1,343 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.friend.FriendStatus;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/*
+ * Number of confirmed friends in common between each user and the users
+ * they may know, shared by the friend managers of all users. At most
+ * maxCandidatesPerUser candidates are kept per user, a new candidate
+ * replaces the one with the fewest mutual friends and takes over its
+ * count plus one, so counts of candidates that were replaced are over
+ * estimated until the next rebuild while the users with the most mutual
+ * friends stay. The index is rebuilt when started, then every
+ * rebuildPeriodInSeconds when one is given. A maxCandidatesPerUser of 0
+ * disables the index.
+ */
+public class FriendSuggestionIndex implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(FriendSuggestionIndex.class.getName());
+
+    private static final String CONFIRMED_FRIENDSHIPS_QUERY = "MATCH(user:User)-[friendship:friend]->(friend:User) " +
+            "WHERE friendship.status = '" + FriendStatus.confirmed + "' " +
+            "RETURN user.uri as uri, friend.uri as friendUri";
+
+    private final Integer maxCandidatesPerUser;
+
+    private final Long rebuildPeriodInSeconds;
+
+    private volatile ConcurrentHashMap<String, CandidateCounts> candidatesByUri = new ConcurrentHashMap<>();
+
+    /*
+     * Confirmations apply under the read lock, a rebuild takes the write
+     * lock to start recording them and again to swap in its counts.
+     */
+    private final ReentrantReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+
+    private ConcurrentLinkedQueue<String[]> confirmedWhileRebuilding;
+
+    private ScheduledExecutorService rebuilder;
+
+    @Inject
+    Neo4jSessions sessions;
+
+    /*
+     * Counts of one user, guarded by its own monitor so updates to
+     * different users do not contend.
+     */
+    private static class CandidateCounts {
+        private final Map<String, Integer> counts = new HashMap<>();
+    }
+
+    public static FriendSuggestionIndex disabled() {
+        return new FriendSuggestionIndex(0);
+    }
+
+    public FriendSuggestionIndex(Integer maxCandidatesPerUser) {
+        this(maxCandidatesPerUser, null);
+    }
+
+    public FriendSuggestionIndex(Integer maxCandidatesPerUser, Long rebuildPeriodInSeconds) {
+        this.maxCandidatesPerUser = maxCandidatesPerUser;
+        this.rebuildPeriodInSeconds = rebuildPeriodInSeconds;
+    }
+
+    public Boolean isEnabled() {
+        return maxCandidatesPerUser > 0;
+    }
+
+    /*
+     * Users who became confirmed friends, with the confirmed friends of
+     * each after the confirmation. Each of them is a new mutual friend
+     * between the other and their friends.
+     */
+    void confirmed(String userUri, Collection<String> userFriendUris, String friendUri, Collection<String> friendFriendUris) {
+        if (!isEnabled()) {
+            return;
+        }
+        rebuildLock.readLock().lock();
+        try {
+            if (confirmedWhileRebuilding != null) {
+                confirmedWhileRebuilding.add(new String[]{userUri, friendUri});
+                return;
+            }
+            apply(userUri, userFriendUris, friendUri, friendFriendUris);
+        } finally {
+            rebuildLock.readLock().unlock();
+        }
+    }
+
+    private void apply(String userUri, Collection<String> userFriendUris, String friendUri, Collection<String> friendFriendUris) {
+        remove(userUri, friendUri);
+        remove(friendUri, userUri);
+        Set<String> friendFriends = new HashSet<>(friendFriendUris);
+        Set<String> userFriends = new HashSet<>(userFriendUris);
+        for (String userFriendUri : userFriends) {
+            if (!userFriendUri.equals(friendUri) && !friendFriends.contains(userFriendUri)) {
+                increment(friendUri, userFriendUri);
+                increment(userFriendUri, friendUri);
+            }
+        }
+        for (String friendFriendUri : friendFriends) {
+            if (!friendFriendUri.equals(userUri) && !userFriends.contains(friendFriendUri)) {
+                increment(userUri, friendFriendUri);
+                increment(friendFriendUri, userUri);
+            }
+        }
+    }
+
+    /*
+     * Candidates of the user with the most mutual friends first, they may
+     * include users with a pending friend request since the index does not
+     * follow requests and removals.
+     */
+    List<Map.Entry<String, Integer>> candidates(String userUri) {
+        CandidateCounts candidateCounts = candidatesByUri.get(userUri);
+        if (candidateCounts == null) {
+            return new ArrayList<>();
+        }
+        List<Map.Entry<String, Integer>> candidates;
+        synchronized (candidateCounts) {
+            candidates = new ArrayList<>(candidateCounts.counts.entrySet());
+        }
+        candidates.sort(
+                (a, b) -> b.getValue().equals(a.getValue()) ?
+                        a.getKey().compareTo(b.getKey()) :
+                        b.getValue().compareTo(a.getValue())
+        );
+        return candidates;
+    }
+
+    /*
+     * Recounts the mutual friends of every user from the confirmed
+     * friendships, users are counted in parallel over all cores.
+     * Confirmations happening meanwhile are only recorded, then replayed
+     * on the new counts unless the friendships read already had them.
+     */
+    public synchronized void rebuild() {
+        if (!isEnabled()) {
+            return;
+        }
+        rebuildLock.writeLock().lock();
+        try {
+            confirmedWhileRebuilding = new ConcurrentLinkedQueue<>();
+        } finally {
+            rebuildLock.writeLock().unlock();
+        }
+        try {
+            Map<String, Integer> ids = new HashMap<>();
+            List<String> uris = new ArrayList<>();
+            List<Set<Integer>> friendIds = new ArrayList<>();
+            try (Session session = sessions.read()) {
+                Result sr = session.run(
+                        CONFIRMED_FRIENDSHIPS_QUERY
+                );
+                while (sr.hasNext()) {
+                    Record record = sr.next();
+                    Integer userId = id(record.get("uri").asString(), ids, uris, friendIds);
+                    Integer friendId = id(record.get("friendUri").asString(), ids, uris, friendIds);
+                    if (!userId.equals(friendId)) {
+                        friendIds.get(userId).add(friendId);
+                        friendIds.get(friendId).add(userId);
+                    }
+                }
+            }
+            ConcurrentHashMap<String, CandidateCounts> rebuilt = new ConcurrentHashMap<>();
+            IntStream.range(0, uris.size()).parallel().forEach(userId -> {
+                Map<Integer, Integer> counts = new HashMap<>();
+                Set<Integer> friends = friendIds.get(userId);
+                for (Integer friendId : friends) {
+                    for (Integer candidateId : friendIds.get(friendId)) {
+                        if (candidateId != userId && !friends.contains(candidateId)) {
+                            counts.merge(candidateId, 1, Integer::sum);
+                        }
+                    }
+                }
+                if (counts.isEmpty()) {
+                    return;
+                }
+                List<Map.Entry<Integer, Integer>> top = new ArrayList<>(counts.entrySet());
+                top.sort((a, b) -> b.getValue().compareTo(a.getValue()));
+                CandidateCounts candidateCounts = new CandidateCounts();
+                for (Map.Entry<Integer, Integer> candidate : top.subList(0, Math.min(maxCandidatesPerUser, top.size()))) {
+                    candidateCounts.counts.put(uris.get(candidate.getKey()), candidate.getValue());
+                }
+                rebuilt.put(uris.get(userId), candidateCounts);
+            });
+            ConcurrentLinkedQueue<String[]> pending;
+            rebuildLock.writeLock().lock();
+            try {
+                candidatesByUri = rebuilt;
+                pending = confirmedWhileRebuilding;
+                confirmedWhileRebuilding = null;
+            } finally {
+                rebuildLock.writeLock().unlock();
+            }
+            for (String[] confirmed : pending) {
+                Integer userId = ids.get(confirmed[0]);
+                Integer friendId = ids.get(confirmed[1]);
+                if (userId != null && friendId != null && friendIds.get(userId).contains(friendId)) {
+                    continue;
+                }
+                replay(confirmed[0], confirmed[1]);
+            }
+        } finally {
+            rebuildLock.writeLock().lock();
+            confirmedWhileRebuilding = null;
+            rebuildLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Rebuilds the index, then schedules the periodic rebuilds.
+     */
+    public synchronized void start() {
+        if (!isEnabled() || rebuilder != null) {
+            return;
+        }
+        rebuild();
+        if (rebuildPeriodInSeconds == null) {
+            return;
+        }
+        rebuilder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "friend-suggestion-index-rebuilder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebuilder.scheduleWithFixedDelay(
+                this::rebuildQuietly,
+                rebuildPeriodInSeconds,
+                rebuildPeriodInSeconds,
+                TimeUnit.SECONDS
+        );
+    }
+
+    @Override
+    public synchronized void close() {
+        if (rebuilder != null) {
+            rebuilder.shutdownNow();
+        }
+    }
+
+    private void rebuildQuietly() {
+        try {
+            rebuild();
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.WARNING, "Could not rebuild the friend suggestion index", exception);
+        }
+    }
+
+    public Integer numberOfUsers() {
+        return candidatesByUri.size();
+    }
+
+    private void replay(String userUri, String friendUri) {
+        try (Session session = sessions.read()) {
+            Map<String, List<String>> confirmedFriends = FriendManagerNeo4j.confirmedFriendUris(
+                    session,
+                    userUri,
+                    friendUri
+            );
+            confirmed(
+                    userUri,
+                    confirmedFriends.get(userUri),
+                    friendUri,
+                    confirmedFriends.get(friendUri)
+            );
+        }
+    }
+
+    private void remove(String userUri, String candidateUri) {
+        CandidateCounts candidateCounts = candidatesByUri.get(userUri);
+        if (candidateCounts == null) {
+            return;
+        }
+        synchronized (candidateCounts) {
+            candidateCounts.counts.remove(candidateUri);
+        }
+    }
+
+    private void increment(String userUri, String candidateUri) {
+        CandidateCounts candidateCounts = candidatesByUri.computeIfAbsent(
+                userUri,
+                uri -> new CandidateCounts()
+        );
+        synchronized (candidateCounts) {
+            Map<String, Integer> counts = candidateCounts.counts;
+            Integer count = counts.get(candidateUri);
+            if (count != null) {
+                counts.put(candidateUri, count + 1);
+                return;
+            }
+            if (counts.size() < maxCandidatesPerUser) {
+                counts.put(candidateUri, 1);
+                return;
+            }
+            String fewestUri = null;
+            Integer fewestCount = Integer.MAX_VALUE;
+            for (Map.Entry<String, Integer> candidate : counts.entrySet()) {
+                if (candidate.getValue() < fewestCount) {
+                    fewestUri = candidate.getKey();
+                    fewestCount = candidate.getValue();
+                }
+            }
+            counts.remove(fewestUri);
+            counts.put(candidateUri, fewestCount + 1);
+        }
+    }
+
+    private static Integer id(String uri, Map<String, Integer> ids, List<String> uris, List<Set<Integer>> friendIds) {
+        Integer id = ids.get(uri);
+        if (id == null) {
+            id = uris.size();
+            ids.put(uri, id);
+            uris.add(uri);
+            friendIds.add(new HashSet<>());
+        }
+        return id;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendPojo;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/*
+ * Lookups currently running against the database, shared by concurrent
+ * callers asking for the same user or friend list. Unlike the caches
+ * nothing is kept once a lookup completes. Callers sharing a lookup each
+ * get their own copy of the user. Lookups are also keyed by the bookmark
+ * of the caller, the one of the latest writes outside of a bookmark
+ * scope, so a caller never joins a lookup started before a write it must
+ * see. When disabled every caller runs its own query.
+ */
+public class InFlightLookups {
+
+    private final Boolean enabled;
+
+    final SingleFlight<String, User> usersByUsername = new SingleFlight<>();
+
+    final SingleFlight<String, FriendList> friendListsByUri = new SingleFlight<>();
+
+    final SingleFlight<String, Map<URI, FriendPojo>> friendsByUri = new SingleFlight<>();
+
+    public static InFlightLookups disabled() {
+        return new InFlightLookups(false);
+    }
+
+    public InFlightLookups(Boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public Boolean isEnabled() {
+        return enabled;
+    }
+
+    <K, V> V load(SingleFlight<K, V> lookups, K key, Object variant, Supplier<V> loader) {
+        return enabled ?
+                lookups.load(key, variant, loader) :
+                loader.get();
+    }
+
+    User loadUser(String username, Object variant, Supplier<User> loader) {
+        return enabled ?
+                UserHydrator.copy(usersByUsername.load(username, variant, loader)) :
+                loader.get();
+    }
+
+    void forgetUser(String username) {
+        if (enabled) {
+            usersByUsername.forget(username);
+        }
+    }
+
+    void forgetFriends(String... userUris) {
+        if (!enabled) {
+            return;
+        }
+        for (String userUri : userUris) {
+            friendListsByUri.forget(userUri);
+            friendsByUri.forget(userUri);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps the measurements in memory, per method, with latencies in power of
+ * two buckets of nanoseconds.
+ */
+public class InMemoryRepositoryMetrics implements RepositoryMetricsSink {
+
+    private final Map<String, MethodMetrics> metricsByMethod = new ConcurrentHashMap<>();
+
+    public static class MethodMetrics {
+
+        private final AtomicLong calls = new AtomicLong(),
+                errors = new AtomicLong(),
+                resultSizes = new AtomicLong(),
+                queries = new AtomicLong(),
+                resultAvailableAfterInMillis = new AtomicLong(),
+                resultConsumedAfterInMillis = new AtomicLong();
+
+        private final AtomicLongArray latencyBuckets = new AtomicLongArray(64);
+
+        public Long getCalls() {
+            return calls.get();
+        }
+
+        public Long getErrors() {
+            return errors.get();
+        }
+
+        public Long getTotalResultSize() {
+            return resultSizes.get();
+        }
+
+        public Long getQueries() {
+            return queries.get();
+        }
+
+        public Long getTotalResultAvailableAfterInMillis() {
+            return resultAvailableAfterInMillis.get();
+        }
+
+        public Long getTotalResultConsumedAfterInMillis() {
+            return resultConsumedAfterInMillis.get();
+        }
+
+        /*
+         * Upper bound of the bucket holding the percentile, at most twice
+         * the actual latency.
+         */
+        public Long getLatencyPercentileInNanos(Double percentile) {
+            long total = 0;
+            for (int i = 0; i < latencyBuckets.length(); i++) {
+                total += latencyBuckets.get(i);
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < latencyBuckets.length(); i++) {
+                seen += latencyBuckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i >= 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return 0L;
+        }
+
+        private void recordLatency(Long latencyInNanos) {
+            latencyBuckets.incrementAndGet(
+                    63 - Long.numberOfLeadingZeros(Math.max(1L, latencyInNanos))
+            );
+        }
+    }
+
+    @Override
+    public void recordCall(String method, Long latencyInNanos, Integer resultSize, Boolean failed) {
+        MethodMetrics metrics = metricsOf(method);
+        metrics.calls.incrementAndGet();
+        if (failed) {
+            metrics.errors.incrementAndGet();
+        }
+        metrics.resultSizes.addAndGet(resultSize);
+        metrics.recordLatency(latencyInNanos);
+    }
+
+    @Override
+    public void recordServerTimes(String method, Long resultAvailableAfterInMillis, Long resultConsumedAfterInMillis) {
+        MethodMetrics metrics = metricsOf(method);
+        metrics.queries.incrementAndGet();
+        metrics.resultAvailableAfterInMillis.addAndGet(resultAvailableAfterInMillis);
+        metrics.resultConsumedAfterInMillis.addAndGet(resultConsumedAfterInMillis);
+    }
+
+    public MethodMetrics get(String method) {
+        return metricsByMethod.get(method);
+    }
+
+    public Map<String, MethodMetrics> getAll() {
+        return metricsByMethod;
+    }
+
+    private MethodMetrics metricsOf(String method) {
+        return metricsByMethod.computeIfAbsent(
+                method,
+                ignored -> new MethodMetrics()
+        );
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * One JSON object per line, written and parsed with Gson. Values are
+ * converted to what node and relationship properties hold: integral
+ * numbers are read back as Long and the others as Double, like the
+ * driver returns them, instead of the Double Gson gives for all numbers.
+ */
+final class NdjsonCodec {
+
+    private static final Gson GSON = new GsonBuilder().serializeNulls().disableHtmlEscaping().create();
+
+    private NdjsonCodec() {
+    }
+
+    static String write(Map<String, Object> object) {
+        return GSON.toJson(object);
+    }
+
+    static Map<String, Object> read(String line) {
+        JsonObject object;
+        try {
+            object = GSON.fromJson(line, JsonObject.class);
+        } catch (JsonParseException exception) {
+            throw new IllegalArgumentException(exception.getMessage(), exception);
+        }
+        if (object == null) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        Map<String, Object> properties = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> property : object.entrySet()) {
+            properties.put(property.getKey(), value(property.getValue()));
+        }
+        return properties;
+    }
+
+    private static Object value(JsonElement element) {
+        if (element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            List<Object> values = new ArrayList<>(array.size());
+            for (JsonElement value : array) {
+                values.add(value(value));
+            }
+            return values;
+        }
+        if (element.isJsonObject()) {
+            throw new IllegalArgumentException("Nested objects are not properties");
+        }
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        }
+        if (primitive.isString()) {
+            return primitive.getAsString();
+        }
+        String number = primitive.getAsString();
+        if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+            return Long.parseLong(number);
+        }
+        return Double.parseDouble(number);
+    }
+}
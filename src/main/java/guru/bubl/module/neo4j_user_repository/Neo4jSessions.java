@@ -0,0 +1,279 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Bookmark;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.async.AsyncSession;
+import org.neo4j.driver.summary.ResultSummary;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Opens read sessions, that a cluster can route to followers and read
+ * replicas, and write sessions, routed to the leader. Sessions get the
+ * bookmarks of the latest writes closed through this Neo4jSessions, on
+ * any thread, so a read after a write sees the write:
+ *
+ *   userRepository.changePassword(user);
+ *   userRepository.findByUsername(user.username());
+ *
+ * A write supersedes the writes closed before its session opened, only
+ * the bookmarks of writes that overlapped are kept together. Nothing is
+ * kept per thread. Inside a bookmark scope sessions get the bookmark of
+ * the scope instead, the one of the last write closed in the scope:
+ *
+ *   try (Neo4jSessions.BookmarkScope scope = sessions.scope()) {
+ *       friendManager.confirm(newFriend);
+ *       friendManager.list();
+ *   }
+ *
+ * A scope opened in another scope starts from the bookmark of the outer
+ * one and gives its own back when it closes. Carry a bookmark to another
+ * thread with scope(bookmark).
+ */
+@Singleton
+public class Neo4jSessions {
+
+    private final ThreadLocal<BookmarkScope> bookmarkScope = new ThreadLocal<>();
+
+    private final AtomicLong writesClosed = new AtomicLong();
+
+    private final List<ClosedWrite> latestWrites = new ArrayList<>();
+
+    private volatile Bookmark latestWritesBookmark;
+
+    private final Driver driver;
+
+    private final String database;
+
+    private RepositoryMetricsSink metricsSink;
+
+    private SlowQueryLog slowQueryLog;
+
+    @Inject
+    public Neo4jSessions(Driver driver) {
+        this(driver, null);
+    }
+
+    /*
+     * Sessions on the given database instead of the default one. Bookmarks
+     * are kept per Neo4jSessions since those of one database mean nothing
+     * to another.
+     */
+    public Neo4jSessions(Driver driver, String database) {
+        this.driver = driver;
+        this.database = database;
+    }
+
+    public Session read() {
+        Session session = driver.session(
+                config(AccessMode.READ)
+        );
+        return isObserving() ?
+                new ObservedSession(session, this, AccessMode.READ, true) :
+                session;
+    }
+
+    public Session write() {
+        return new ObservedSession(
+                driver.session(
+                        config(AccessMode.WRITE)
+                ),
+                this,
+                AccessMode.WRITE,
+                isObserving()
+        );
+    }
+
+    /*
+     * Session on the same database without bookmark, metrics or slow query
+     * log, for queries about queries.
+     */
+    Session unobserved(AccessMode accessMode) {
+        SessionConfig.Builder builder = SessionConfig.builder().withDefaultAccessMode(
+                accessMode
+        );
+        if (database != null) {
+            builder.withDatabase(database);
+        }
+        return driver.session(builder.build());
+    }
+
+    public BookmarkScope scope() {
+        return scope(
+                lastBookmark()
+        );
+    }
+
+    public BookmarkScope scope(Bookmark bookmark) {
+        BookmarkScope scope = new BookmarkScope(
+                bookmarkScope.get(),
+                bookmark
+        );
+        bookmarkScope.set(scope);
+        return scope;
+    }
+
+    public class BookmarkScope implements AutoCloseable {
+
+        private final BookmarkScope outer;
+
+        private Bookmark bookmark;
+
+        private BookmarkScope(BookmarkScope outer, Bookmark bookmark) {
+            this.outer = outer;
+            this.bookmark = bookmark;
+        }
+
+        public Bookmark bookmark() {
+            return bookmark;
+        }
+
+        @Override
+        public void close() {
+            if (bookmarkScope.get() != this) {
+                return;
+            }
+            if (outer == null) {
+                bookmarkScope.remove();
+                return;
+            }
+            if (bookmark != null) {
+                outer.bookmark = bookmark;
+            }
+            bookmarkScope.set(outer);
+        }
+    }
+
+    private Boolean isObserving() {
+        return metricsSink != null || slowQueryLog != null;
+    }
+
+    void report(List<ObservedQueryRunner.RanQuery> ranQueries, AccessMode accessMode) {
+        String method = RepositoryMetricsInterceptor.currentMethod();
+        method = method == null ? "unknown" : method;
+        for (ObservedQueryRunner.RanQuery ranQuery : ranQueries) {
+            try {
+                ResultSummary summary = ranQuery.result.consume();
+                if (metricsSink != null) {
+                    metricsSink.recordServerTimes(
+                            method,
+                            summary.resultAvailableAfter(TimeUnit.MILLISECONDS),
+                            summary.resultConsumedAfter(TimeUnit.MILLISECONDS)
+                    );
+                }
+                if (slowQueryLog != null) {
+                    slowQueryLog.record(
+                            method,
+                            ranQuery.query,
+                            ranQuery.parameters,
+                            summary,
+                            accessMode,
+                            this
+                    );
+                }
+            } catch (RuntimeException ignored) {
+                // failed queries are reported as errors of the method
+            }
+        }
+    }
+
+    @com.google.inject.Inject(optional = true)
+    public void setMetricsSink(RepositoryMetricsSink metricsSink) {
+        this.metricsSink = metricsSink;
+    }
+
+    @com.google.inject.Inject(optional = true)
+    public void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    public AsyncSession readAsync() {
+        return driver.asyncSession(
+                config(AccessMode.READ)
+        );
+    }
+
+    /*
+     * Bookmark of the current scope, outside of a scope the one of the
+     * latest writes, null before any write.
+     */
+    public Bookmark lastBookmark() {
+        BookmarkScope scope = bookmarkScope.get();
+        return scope == null ? latestWritesBookmark : scope.bookmark;
+    }
+
+    SessionConfig config(AccessMode accessMode) {
+        SessionConfig.Builder builder = SessionConfig.builder().withDefaultAccessMode(
+                accessMode
+        );
+        if (database != null) {
+            builder.withDatabase(database);
+        }
+        Bookmark bookmark = lastBookmark();
+        if (bookmark != null) {
+            builder.withBookmarks(bookmark);
+        }
+        return builder.build();
+    }
+
+    Long writesClosed() {
+        return writesClosed.get();
+    }
+
+    /*
+     * writesClosedWhenOpened is writesClosed() when the write session
+     * opened, the writes closed until then are older than this one.
+     */
+    void rememberBookmark(Bookmark bookmark, Long writesClosedWhenOpened) {
+        if (bookmark == null || bookmark.isEmpty()) {
+            return;
+        }
+        BookmarkScope scope = bookmarkScope.get();
+        if (scope != null) {
+            scope.bookmark = bookmark;
+        }
+        synchronized (latestWrites) {
+            latestWrites.removeIf(
+                    closedWrite -> closedWrite.order <= writesClosedWhenOpened
+            );
+            latestWrites.add(
+                    new ClosedWrite(bookmark, writesClosed.incrementAndGet())
+            );
+            if (latestWrites.size() == 1) {
+                latestWritesBookmark = bookmark;
+                return;
+            }
+            Set<String> values = new HashSet<>();
+            for (ClosedWrite closedWrite : latestWrites) {
+                values.addAll(closedWrite.bookmark.values());
+            }
+            latestWritesBookmark = Bookmark.from(values);
+        }
+    }
+
+    private static class ClosedWrite {
+
+        private final Bookmark bookmark;
+
+        private final Long order;
+
+        private ClosedWrite(Bookmark bookmark, Long order) {
+            this.bookmark = bookmark;
+            this.order = order;
+        }
+    }
+}
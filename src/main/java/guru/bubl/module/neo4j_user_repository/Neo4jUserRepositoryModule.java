@@ -5,22 +5,303 @@
 package guru.bubl.module.neo4j_user_repository;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provider;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
+import com.google.inject.matcher.AbstractMatcher;
+import com.google.inject.matcher.Matchers;
+import com.google.inject.name.Names;
 import guru.bubl.module.model.friend.FriendManager;
 import guru.bubl.module.model.friend.FriendManagerFactory;
 import guru.bubl.module.neo4j_graph_manipulator.graph.Neo4jModule;
 import guru.bubl.module.repository.user.UserRepository;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 public class Neo4jUserRepositoryModule extends AbstractModule{
 
+    private Boolean failOnMissingSchema = false;
+
+    private Integer userCacheMaxSize;
+
+    private Long userCacheTtlInSeconds;
+
+    private Double existenceFilterFalsePositiveRate;
+
+    private Long existenceFilterRebuildPeriodInSeconds;
+
+    private Long prefixIndexReconcilePeriodInSeconds;
+
+    private FriendListCache friendListCache = FriendListCache.disabled();
+
+    private Long consultNotificationDateFlushIntervalInMillis;
+
+    private RepositoryMetricsSink metricsSink;
+
+    private SlowQueryLog slowQueryLog;
+
+    private ForgetPasswordTokenSweeper forgetPasswordTokenSweeper;
+
+    private InFlightLookups inFlightLookups = InFlightLookups.disabled();
+
+    private List<UserPartition> userPartitions;
+
+    private FriendSuggestionIndex friendSuggestionIndex = FriendSuggestionIndex.disabled();
+
+    private CachedUserRepository cachedUserRepository;
+
+    private PrefixIndexedUserRepository prefixIndexedUserRepository;
+
+    public Neo4jUserRepositoryModule failOnMissingSchema(Boolean failOnMissingSchema) {
+        this.failOnMissingSchema = failOnMissingSchema;
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule cacheUsers(Integer maxSize, Long ttlInSeconds) {
+        this.userCacheMaxSize = maxSize;
+        this.userCacheTtlInSeconds = ttlInSeconds;
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule filterUserExistence(Double falsePositiveRate) {
+        this.existenceFilterFalsePositiveRate = falsePositiveRate;
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule filterUserExistence(Double falsePositiveRate, Long rebuildPeriodInSeconds) {
+        this.existenceFilterFalsePositiveRate = falsePositiveRate;
+        this.existenceFilterRebuildPeriodInSeconds = rebuildPeriodInSeconds;
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule indexUsernamePrefixes(Long reconcilePeriodInSeconds) {
+        this.prefixIndexReconcilePeriodInSeconds = reconcilePeriodInSeconds;
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule cacheFriendLists(Integer maxSize, Long ttlInSeconds) {
+        this.friendListCache = new FriendListCache(maxSize, ttlInSeconds, TimeUnit.SECONDS);
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule bufferConsultNotificationDates(Long flushIntervalInMillis) {
+        this.consultNotificationDateFlushIntervalInMillis = flushIntervalInMillis;
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule recordMetrics(RepositoryMetricsSink metricsSink) {
+        this.metricsSink = metricsSink;
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule logSlowQueries(Long thresholdInMillis, Double profileSampleRate) {
+        this.slowQueryLog = new SlowQueryLog(thresholdInMillis, profileSampleRate);
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule sweepExpiredForgetPasswordTokens(Long periodInSeconds, Integer batchSize) {
+        this.forgetPasswordTokenSweeper = new ForgetPasswordTokenSweeper(periodInSeconds, batchSize);
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule coalesceLookups() {
+        this.inFlightLookups = new InFlightLookups(true);
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule suggestFriends(Integer maxCandidatesPerUser) {
+        this.friendSuggestionIndex = new FriendSuggestionIndex(maxCandidatesPerUser);
+        return this;
+    }
+
+    public Neo4jUserRepositoryModule suggestFriends(Integer maxCandidatesPerUser, Long rebuildPeriodInSeconds) {
+        this.friendSuggestionIndex = new FriendSuggestionIndex(maxCandidatesPerUser, rebuildPeriodInSeconds);
+        return this;
+    }
+
+    /*
+     * The UserRepository is then a PartitionedUserRepository over the given
+     * partitions and the FriendManagerFactory gives friend managers over all
+     * partitions. The bound Driver is still used for the schema checks.
+     * The features that only know the bound Driver cannot be combined with
+     * partitions, the injector is not created: the username prefix index,
+     * the existence filter, friend suggestions, metrics, the slow query log,
+     * the forget password token sweeper and buffered consult notification
+     * dates. UserRepositoryNeo4jAsync and FriendManagerAsyncFactory are not
+     * available.
+     */
+    public Neo4jUserRepositoryModule partitionUsers(UserPartition... userPartitions) {
+        this.userPartitions = Arrays.asList(userPartitions);
+        return this;
+    }
+
     @Override
     protected void configure()
     {
-        bind(UserRepository.class).to(UserRepositoryNeo4j.class);
-        FactoryModuleBuilder factoryModuleBuilder = new FactoryModuleBuilder();
-        install(factoryModuleBuilder
-                .implement(FriendManager.class, FriendManagerNeo4j.class)
-                .build(FriendManagerFactory.class));
+        if (userPartitions != null && (prefixIndexReconcilePeriodInSeconds != null ||
+                existenceFilterFalsePositiveRate != null ||
+                friendSuggestionIndex.isEnabled() ||
+                metricsSink != null ||
+                slowQueryLog != null ||
+                forgetPasswordTokenSweeper != null ||
+                consultNotificationDateFlushIntervalInMillis != null)) {
+            throw new IllegalStateException(
+                    "The username prefix index, the existence filter, friend suggestions, metrics, " +
+                            "the slow query log, the forget password token sweeper and buffered consult " +
+                            "notification dates only use the bound Driver, they cannot be used with partitioned users"
+            );
+        }
+        bindConstant().annotatedWith(
+                Names.named(UserSchemaNeo4j.FAIL_ON_MISSING_SCHEMA)
+        ).to(failOnMissingSchema);
+        bind(UserSchemaNeo4j.class).asEagerSingleton();
+        bind(FriendListCache.class).toInstance(friendListCache);
+        bind(InFlightLookups.class).toInstance(inFlightLookups);
+        bind(FriendSuggestionIndex.class).toInstance(friendSuggestionIndex);
+        bind(UserRepositoryLifecycle.class).asEagerSingleton();
+        if (userPartitions == null) {
+            FactoryModuleBuilder factoryModuleBuilder = new FactoryModuleBuilder();
+            install(factoryModuleBuilder
+                    .implement(FriendManager.class, FriendManagerNeo4j.class)
+                    .build(FriendManagerFactory.class));
+        } else {
+            bind(FriendManagerFactory.class).to(PartitionedFriendManagerFactory.class);
+        }
+        if (userPartitions == null) {
+            bind(UserRepositoryNeo4jAsync.class);
+            install(new FactoryModuleBuilder()
+                    .build(FriendManagerAsyncFactory.class));
+        } else {
+            bind(UserRepositoryNeo4jAsync.class).toProvider(() -> {
+                throw new IllegalStateException(
+                        "UserRepositoryNeo4jAsync only uses the bound Driver, it cannot be used with partitioned users"
+                );
+            });
+        }
+        if (slowQueryLog != null) {
+            bind(SlowQueryLog.class).toInstance(slowQueryLog);
+        }
+        if (forgetPasswordTokenSweeper != null) {
+            bind(ForgetPasswordTokenSweeper.class).toInstance(forgetPasswordTokenSweeper);
+        }
+        if (metricsSink != null) {
+            bind(RepositoryMetricsSink.class).toInstance(metricsSink);
+            bindInterceptor(
+                    Matchers.subclassesOf(UserRepositoryNeo4j.class).or(
+                            Matchers.subclassesOf(FriendManagerNeo4j.class)
+                    ),
+                    new AbstractMatcher<Method>() {
+                        @Override
+                        public boolean matches(Method method) {
+                            return Modifier.isPublic(method.getModifiers()) &&
+                                    !method.isSynthetic() &&
+                                    method.getDeclaringClass() != Object.class;
+                        }
+                    },
+                    new RepositoryMetricsInterceptor(metricsSink)
+            );
+        }
+    }
+
+    @Provides
+    @Singleton
+    ConsultNotificationDateBuffer consultNotificationDateBuffer(Neo4jSessions sessions, UserRepositoryLifecycle lifecycle) {
+        ConsultNotificationDateBuffer consultNotificationDateBuffer = new ConsultNotificationDateBuffer(
+                sessions,
+                consultNotificationDateFlushIntervalInMillis
+        );
+        lifecycle.stopOnClose(consultNotificationDateBuffer);
+        return consultNotificationDateBuffer;
+    }
+
+    @Provides
+    @Singleton
+    PartitionedUserRepository partitionedUserRepository(UserRepositoryLifecycle lifecycle) {
+        if (userPartitions == null) {
+            throw new IllegalStateException(
+                    "Users are not partitioned, see partitionUsers"
+            );
+        }
+        PartitionedUserRepository partitionedUserRepository = new PartitionedUserRepository(
+                userPartitions,
+                failOnMissingSchema
+        );
+        lifecycle.stopOnClose(partitionedUserRepository);
+        return partitionedUserRepository;
+    }
+
+    /*
+     * The user cache of the UserRepository, for its counters.
+     */
+    @Provides
+    CachedUserRepository cachedUserRepository(UserRepository userRepository) {
+        if (cachedUserRepository == null) {
+            throw new IllegalStateException(
+                    "Users are not cached, see cacheUsers"
+            );
+        }
+        return cachedUserRepository;
+    }
+
+    /*
+     * The username prefix index of the UserRepository, for searches with a
+     * limit.
+     */
+    @Provides
+    PrefixIndexedUserRepository prefixIndexedUserRepository(UserRepository userRepository) {
+        if (prefixIndexedUserRepository == null) {
+            throw new IllegalStateException(
+                    "Username prefixes are not indexed, see indexUsernamePrefixes"
+            );
+        }
+        return prefixIndexedUserRepository;
+    }
 
+    @Provides
+    @Singleton
+    UserRepository userRepository(UserRepositoryNeo4j userRepositoryNeo4j, Neo4jSessions sessions, Provider<PartitionedUserRepository> partitionedUserRepository, UserRepositoryLifecycle lifecycle) {
+        UserRepository userRepository = userRepositoryNeo4j;
+        if (userPartitions != null) {
+            userRepository = partitionedUserRepository.get();
+        }
+        if (userCacheMaxSize != null) {
+            cachedUserRepository = new CachedUserRepository(
+                    userRepository,
+                    userCacheMaxSize,
+                    userCacheTtlInSeconds,
+                    TimeUnit.SECONDS
+            );
+            lifecycle.rebuildWithIndexes(cachedUserRepository::invalidateAll);
+            userRepository = cachedUserRepository;
+        }
+        if (prefixIndexReconcilePeriodInSeconds != null) {
+            prefixIndexedUserRepository = new PrefixIndexedUserRepository(
+                    userRepository,
+                    sessions,
+                    prefixIndexReconcilePeriodInSeconds
+            );
+            lifecycle.stopOnClose(prefixIndexedUserRepository);
+            lifecycle.rebuildWithIndexes(prefixIndexedUserRepository::reconcile);
+            lifecycle.addToIndexes(prefixIndexedUserRepository::addUser);
+            userRepository = prefixIndexedUserRepository;
+        }
+        if (existenceFilterFalsePositiveRate != null) {
+            ExistenceFilteredUserRepository existenceFilteredUserRepository = new ExistenceFilteredUserRepository(
+                    userRepository,
+                    sessions,
+                    existenceFilterFalsePositiveRate,
+                    existenceFilterRebuildPeriodInSeconds
+            );
+            lifecycle.stopOnClose(existenceFilteredUserRepository);
+            lifecycle.rebuildWithIndexes(existenceFilteredUserRepository::rebuild);
+            lifecycle.addToIndexes(existenceFilteredUserRepository::add);
+            userRepository = existenceFilteredUserRepository;
+        }
+        return userRepository;
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.QueryRunner;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Runs queries on the session or transaction it wraps and, when
+ * recording, keeps their results to report the summaries to Neo4jSessions
+ * once the session or transaction is done with them.
+ */
+abstract class ObservedQueryRunner implements QueryRunner {
+
+    private final QueryRunner queryRunner;
+
+    final Neo4jSessions sessions;
+
+    final AccessMode accessMode;
+
+    private final List<RanQuery> ranQueries;
+
+    static class RanQuery {
+        final String query;
+        final Object parameters;
+        final Result result;
+
+        private RanQuery(String query, Object parameters, Result result) {
+            this.query = query;
+            this.parameters = parameters;
+            this.result = result;
+        }
+    }
+
+    ObservedQueryRunner(QueryRunner queryRunner, Neo4jSessions sessions, AccessMode accessMode, Boolean recording) {
+        this.queryRunner = queryRunner;
+        this.sessions = sessions;
+        this.accessMode = accessMode;
+        this.ranQueries = recording ? new ArrayList<>() : null;
+    }
+
+    @Override
+    public Result run(String query, Value parameters) {
+        return observe(
+                queryRunner.run(query, parameters),
+                query,
+                parameters
+        );
+    }
+
+    @Override
+    public Result run(String query, Map<String, Object> parameters) {
+        return observe(
+                queryRunner.run(query, parameters),
+                query,
+                parameters
+        );
+    }
+
+    @Override
+    public Result run(String query, Record parameters) {
+        return observe(
+                queryRunner.run(query, parameters),
+                query,
+                parameters == null ? null : parameters.asMap()
+        );
+    }
+
+    @Override
+    public Result run(String query) {
+        return observe(
+                queryRunner.run(query),
+                query,
+                null
+        );
+    }
+
+    @Override
+    public Result run(Query query) {
+        return observe(
+                queryRunner.run(query),
+                query.text(),
+                query.parameters()
+        );
+    }
+
+    Boolean isRecording() {
+        return ranQueries != null;
+    }
+
+    Result observe(Result result, String query, Object parameters) {
+        if (ranQueries != null) {
+            ranQueries.add(
+                    new RanQuery(query, parameters, result)
+            );
+        }
+        return result;
+    }
+
+    /*
+     * Consumes what is left of the results, call it while the session or
+     * transaction is still open.
+     */
+    void report() {
+        if (ranQueries == null || ranQueries.isEmpty()) {
+            return;
+        }
+        sessions.report(
+                new ArrayList<>(ranQueries),
+                accessMode
+        );
+        ranQueries.clear();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Bookmark;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.TransactionConfig;
+import org.neo4j.driver.TransactionWork;
+
+import java.util.Map;
+
+/*
+ * Session handed out by Neo4jSessions. Queries run directly, in
+ * transaction functions or in explicit transactions are reported, and
+ * the bookmark of a write session is given to Neo4jSessions when it
+ * closes.
+ */
+class ObservedSession extends ObservedQueryRunner implements Session {
+
+    private final Session session;
+
+    private final Long writesClosedWhenOpened;
+
+    ObservedSession(Session session, Neo4jSessions sessions, AccessMode accessMode, Boolean recording) {
+        super(session, sessions, accessMode, recording);
+        this.session = session;
+        this.writesClosedWhenOpened = sessions.writesClosed();
+    }
+
+    @Override
+    public Result run(String query, TransactionConfig config) {
+        return observe(
+                session.run(query, config),
+                query,
+                null
+        );
+    }
+
+    @Override
+    public Result run(String query, Map<String, Object> parameters, TransactionConfig config) {
+        return observe(
+                session.run(query, parameters, config),
+                query,
+                parameters
+        );
+    }
+
+    @Override
+    public Result run(Query query, TransactionConfig config) {
+        return observe(
+                session.run(query, config),
+                query.text(),
+                query.parameters()
+        );
+    }
+
+    @Override
+    public Transaction beginTransaction() {
+        return observed(
+                session.beginTransaction()
+        );
+    }
+
+    @Override
+    public Transaction beginTransaction(TransactionConfig config) {
+        return observed(
+                session.beginTransaction(config)
+        );
+    }
+
+    @Override
+    public <T> T readTransaction(TransactionWork<T> work) {
+        return session.readTransaction(
+                tx -> execute(tx, work)
+        );
+    }
+
+    @Override
+    public <T> T readTransaction(TransactionWork<T> work, TransactionConfig config) {
+        return session.readTransaction(
+                tx -> execute(tx, work),
+                config
+        );
+    }
+
+    @Override
+    public <T> T writeTransaction(TransactionWork<T> work) {
+        return session.writeTransaction(
+                tx -> execute(tx, work)
+        );
+    }
+
+    @Override
+    public <T> T writeTransaction(TransactionWork<T> work, TransactionConfig config) {
+        return session.writeTransaction(
+                tx -> execute(tx, work),
+                config
+        );
+    }
+
+    @Override
+    public Bookmark lastBookmark() {
+        return session.lastBookmark();
+    }
+
+    @Override
+    @Deprecated
+    public void reset() {
+        session.reset();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return session.isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            report();
+        } finally {
+            session.close();
+        }
+        if (accessMode == AccessMode.WRITE) {
+            sessions.rememberBookmark(
+                    session.lastBookmark(),
+                    writesClosedWhenOpened
+            );
+        }
+    }
+
+    private Transaction observed(Transaction transaction) {
+        return isRecording() ?
+                new ObservedTransaction(transaction, sessions, accessMode) :
+                transaction;
+    }
+
+    /*
+     * Results of a transaction function can no longer be consumed once it
+     * committed, they are reported when the function returns.
+     */
+    private <T> T execute(Transaction transaction, TransactionWork<T> work) {
+        if (!isRecording()) {
+            return work.execute(transaction);
+        }
+        ObservedTransaction observedTransaction = new ObservedTransaction(
+                transaction,
+                sessions,
+                accessMode
+        );
+        try {
+            return work.execute(observedTransaction);
+        } finally {
+            observedTransaction.report();
+        }
+    }
+}
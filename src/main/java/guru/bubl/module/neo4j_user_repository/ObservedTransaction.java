@@ -0,0 +1,47 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Transaction;
+
+/*
+ * Transaction of an ObservedSession, its queries are reported before it
+ * commits, rolls back or closes.
+ */
+class ObservedTransaction extends ObservedQueryRunner implements Transaction {
+
+    private final Transaction transaction;
+
+    ObservedTransaction(Transaction transaction, Neo4jSessions sessions, AccessMode accessMode) {
+        super(transaction, sessions, accessMode, true);
+        this.transaction = transaction;
+    }
+
+    @Override
+    public void commit() {
+        report();
+        transaction.commit();
+    }
+
+    @Override
+    public void rollback() {
+        report();
+        transaction.rollback();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return transaction.isOpen();
+    }
+
+    @Override
+    public void close() {
+        if (transaction.isOpen()) {
+            report();
+        }
+        transaction.close();
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendManager;
+import guru.bubl.module.model.friend.FriendManagerFactory;
+
+import javax.inject.Inject;
+
+/*
+ * Friend managers of partitioned users, bound by Neo4jUserRepositoryModule
+ * instead of the assisted factory when users are partitioned.
+ */
+public class PartitionedFriendManagerFactory implements FriendManagerFactory {
+
+    @Inject
+    PartitionedUserRepository partitionedUserRepository;
+
+    @Override
+    public FriendManager forUser(User user) {
+        return partitionedUserRepository.friendManager(user);
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendManager;
+import guru.bubl.module.model.friend.FriendPojo;
+import guru.bubl.module.model.friend.FriendStatus;
+import guru.bubl.module.model.forgot_password.UserForgotPasswordToken;
+import guru.bubl.module.repository.user.ExistingUserException;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import guru.bubl.module.repository.user.UserRepository;
+import org.neo4j.driver.Bookmark;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.exceptions.ClientException;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Spreads the users over several databases by a stable hash of their
+ * username. Users are found by email through a directory of the partition
+ * of each email kept in the first partition. A user is created in its
+ * partition before its email is claimed in the directory, a user whose
+ * claim fails is deleted again, and a crash in between leaves a user
+ * missing from the directory until rebuildEmailDirectory. Changing the
+ * number of partitions moves users, export and import them to do so.
+ *
+ * Searches are sent to all partitions at once and the results of each,
+ * in relevance order, are interleaved.
+ *
+ * A friendship is stored in the partition of the user with the lowest
+ * uri, where the other user is represented by a Resource:UserStub node
+ * having only its uri when it lives in another partition. Stubs are only
+ * created once both users were found in their own partitions, and never
+ * in the partition of the user they stand for. The status between two
+ * users is read from that partition only, the friends of a user are read
+ * from all partitions.
+ */
+public class PartitionedUserRepository implements UserRepository, AutoCloseable {
+
+    private static final String CLAIM_EMAIL_QUERY = "CREATE(:UserEmailPartition{email:$email, partition:$partition})",
+            EMAIL_PARTITION_QUERY = "MATCH(entry:UserEmailPartition{email:$email}) RETURN entry.partition as partition",
+            REBUILD_EMAIL_DIRECTORY_QUERY = "UNWIND $entries as entry " +
+                    "MERGE(directory:UserEmailPartition{email:entry.email}) " +
+                    "SET directory.partition = entry.partition",
+            DELETE_USER_QUERY = "MATCH(user:Resource{uri:$uri}) WHERE user.email = $email DETACH DELETE user",
+            RELEASE_EMAIL_QUERY = "MATCH(entry:UserEmailPartition{email:$email, partition:$partition}) DELETE entry",
+            STUB_QUERY = "MERGE(stub:Resource{uri:$uri}) ON CREATE SET stub:UserStub";
+
+    private final List<UserRepositoryNeo4j> partitions = new ArrayList<>();
+
+    private final List<Neo4jSessions> partitionSessions = new ArrayList<>();
+
+    private final ExecutorService scatter;
+
+    public PartitionedUserRepository(List<UserPartition> userPartitions, Boolean failOnMissingSchema) {
+        for (UserPartition userPartition : userPartitions) {
+            new UserSchemaNeo4j(
+                    userPartition.getDriver(),
+                    userPartition.getDatabase(),
+                    failOnMissingSchema
+            );
+            Neo4jSessions sessions = new Neo4jSessions(
+                    userPartition.getDriver(),
+                    userPartition.getDatabase()
+            );
+            UserRepositoryNeo4j partition = new UserRepositoryNeo4j();
+            partition.driver = userPartition.getDriver();
+            partition.sessions = sessions;
+            partition.consultNotificationDateBuffer = new ConsultNotificationDateBuffer(sessions, null);
+            partition.inFlightLookups = InFlightLookups.disabled();
+            partitions.add(partition);
+            partitionSessions.add(sessions);
+        }
+        try (Session session = directorySessions().write()) {
+            session.run(
+                    "CREATE CONSTRAINT user_email_partition IF NOT EXISTS " +
+                            "ON (n:UserEmailPartition) ASSERT n.email IS UNIQUE"
+            ).consume();
+        }
+        this.scatter = Executors.newFixedThreadPool(partitions.size(), runnable -> {
+            Thread thread = new Thread(runnable, "user-partition-scatter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static Integer partitionOf(String username, Integer numberOfPartitions) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < username.length(); i++) {
+            hash ^= username.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) Math.floorMod(hash, (long) numberOfPartitions);
+    }
+
+    @Override
+    public User createUser(User user) {
+        Integer partition = partitionOf(user.username(), partitions.size());
+        partitions.get(partition).createUser(user);
+        try (Session session = directorySessions().write()) {
+            session.run(
+                    CLAIM_EMAIL_QUERY,
+                    parameters(
+                            "email", user.email(),
+                            "partition", partition
+                    )
+            ).consume();
+        } catch (ClientException exception) {
+            try (Session session = partitionSessions.get(partition).write()) {
+                session.run(
+                        DELETE_USER_QUERY,
+                        parameters(
+                                "uri", user.id(),
+                                "email", user.email()
+                        )
+                ).consume();
+            }
+            if (UserRepositoryNeo4j.CONSTRAINT_VALIDATION_FAILED.equals(exception.code())) {
+                throw new ExistingUserException(
+                        user.email()
+                );
+            }
+            throw exception;
+        }
+        return user;
+    }
+
+    @Override
+    public User findByUsername(String username) throws NonExistingUserException {
+        return partitionFor(username).findByUsername(username);
+    }
+
+    @Override
+    public User findByEmail(String email) throws NonExistingUserException {
+        if (email.trim().equals("")) {
+            throw new NonExistingUserException("");
+        }
+        Integer partition = emailPartition(email);
+        if (partition == null) {
+            throw new NonExistingUserException(email);
+        }
+        return partitions.get(partition).findByEmail(email);
+    }
+
+    @Override
+    public Boolean usernameExists(String username) {
+        return partitionFor(username).usernameExists(username);
+    }
+
+    @Override
+    public Boolean emailExists(String email) {
+        if (email.trim().equals("")) {
+            return false;
+        }
+        return emailPartition(email) != null;
+    }
+
+    @Override
+    public void generateForgetPasswordToken(User user, UserForgotPasswordToken userForgotPasswordToken) {
+        partitionFor(user.username()).generateForgetPasswordToken(user, userForgotPasswordToken);
+    }
+
+    @Override
+    public UserForgotPasswordToken getUserForgetPasswordToken(User user) {
+        return partitionFor(user.username()).getUserForgetPasswordToken(user);
+    }
+
+    @Override
+    public void changePassword(User user) {
+        partitionFor(user.username()).changePassword(user);
+    }
+
+    @Override
+    public void updatePreferredLocales(User user) {
+        partitionFor(user.username()).updatePreferredLocales(user);
+    }
+
+    @Override
+    public Date updateConsultNotificationDate(User user) {
+        return partitionFor(user.username()).updateConsultNotificationDate(user);
+    }
+
+    @Deprecated
+    public List<User> searchUsers(String searchTerm, User user) {
+        return searchUsers(searchTerm, user, 0, Integer.MAX_VALUE);
+    }
+
+    public List<User> searchUsers(String searchTerm, User user, Integer offset, Integer limit) {
+        Integer end = (int) Math.min((long) offset + limit, Integer.MAX_VALUE);
+        List<CompletableFuture<List<User>>> searches = new ArrayList<>(partitions.size());
+        for (int i = 0; i < partitions.size(); i++) {
+            UserRepositoryNeo4j partition = partitions.get(i);
+            Neo4jSessions sessions = partitionSessions.get(i);
+            Bookmark bookmark = sessions.lastBookmark();
+            searches.add(CompletableFuture.supplyAsync(() -> {
+                try (Neo4jSessions.BookmarkScope scope = sessions.scope(bookmark)) {
+                    return partition.searchUsers(searchTerm, user, 0, end);
+                }
+            }, scatter));
+        }
+        List<List<User>> results = new ArrayList<>(searches.size());
+        try {
+            for (CompletableFuture<List<User>> search : searches) {
+                results.add(search.join());
+            }
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) exception.getCause();
+            }
+            throw exception;
+        }
+        List<User> merged = new ArrayList<>();
+        for (int rank = 0; merged.size() < end; rank++) {
+            Boolean anyAtRank = false;
+            for (List<User> result : results) {
+                if (rank < result.size() && merged.size() < end) {
+                    merged.add(result.get(rank));
+                    anyAtRank = true;
+                }
+            }
+            if (!anyAtRank) {
+                break;
+            }
+        }
+        return merged.subList(
+                Math.min(offset, merged.size()),
+                merged.size()
+        );
+    }
+
+    public FriendManagerNeo4j friendManager(User user) {
+        return new PartitionedFriendManager(user);
+    }
+
+    /*
+     * Registers the email of every user in the directory, after a crash
+     * between the creation of a user and the claim of its email.
+     */
+    public void rebuildEmailDirectory() {
+        for (int i = 0; i < partitions.size(); i++) {
+            List<Map<String, Object>> entries = new ArrayList<>();
+            try (Session session = partitionSessions.get(i).read()) {
+                Result sr = session.run(
+                        "MATCH(user:User) RETURN user.email as email"
+                );
+                while (sr.hasNext()) {
+                    Map<String, Object> entry = new HashMap<>();
+                    entry.put("email", sr.next().get("email").asString());
+                    entry.put("partition", i);
+                    entries.add(entry);
+                    if (entries.size() == UserRepositoryNeo4j.DEFAULT_BATCH_SIZE) {
+                        writeDirectoryEntries(entries);
+                    }
+                }
+            }
+            writeDirectoryEntries(entries);
+        }
+    }
+
+    public Integer numberOfPartitions() {
+        return partitions.size();
+    }
+
+    @Override
+    public void close() {
+        scatter.shutdown();
+        for (UserRepositoryNeo4j partition : partitions) {
+            partition.consultNotificationDateBuffer.close();
+        }
+    }
+
+    private void writeDirectoryEntries(List<Map<String, Object>> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        try (Session session = directorySessions().write()) {
+            session.writeTransaction(
+                    tx -> tx.run(
+                            REBUILD_EMAIL_DIRECTORY_QUERY,
+                            parameters(
+                                    "entries", entries
+                            )
+                    ).consume()
+            );
+        }
+        entries.clear();
+    }
+
+    private Integer emailPartition(String email) {
+        try (Session session = directorySessions().read()) {
+            Result sr = session.run(
+                    EMAIL_PARTITION_QUERY,
+                    parameters(
+                            "email", email
+                    )
+            );
+            return sr.hasNext() ? sr.single().get("partition").asInt() : null;
+        }
+    }
+
+    private UserRepositoryNeo4j partitionFor(String username) {
+        return partitions.get(
+                partitionOf(username, partitions.size())
+        );
+    }
+
+    private Neo4jSessions directorySessions() {
+        return partitionSessions.get(0);
+    }
+
+    private Integer friendshipPartition(User user, User otherUser) {
+        User owner = user.id().compareTo(otherUser.id()) <= 0 ? user : otherUser;
+        return partitionOf(owner.username(), partitions.size());
+    }
+
+    /*
+     * Friend manager of one user over all partitions. Writes and statuses
+     * go to the partition of the friendship, lists are merged from all
+     * partitions. The friend list cache and in flight lookups of the
+     * module are not used since they are keyed by uri only.
+     */
+    private class PartitionedFriendManager extends FriendManagerNeo4j {
+
+        private final User user;
+
+        private PartitionedFriendManager(User user) {
+            super(user);
+            this.user = user;
+            this.friendSuggestionIndex = FriendSuggestionIndex.disabled();
+        }
+
+        @Override
+        public FriendAddition addAndGetStatus(User newFriend) {
+            Integer partition = friendshipPartition(user, newFriend);
+            for (User friendshipUser : Arrays.asList(user, newFriend)) {
+                Integer home = partitionOf(friendshipUser.username(), partitions.size());
+                if (!partitions.get(home).usernameExists(friendshipUser.username())) {
+                    throw new NonExistingUserException(friendshipUser.username());
+                }
+                if (!home.equals(partition)) {
+                    try (Session session = partitionSessions.get(partition).write()) {
+                        session.run(
+                                STUB_QUERY,
+                                parameters(
+                                        "uri", friendshipUser.id()
+                                )
+                        ).consume();
+                    }
+                }
+            }
+            return managerIn(partition).addAndGetStatus(newFriend);
+        }
+
+        @Override
+        public FriendManager confirm(User newFriend) {
+            managerIn(friendshipPartition(user, newFriend)).confirm(newFriend);
+            return this;
+        }
+
+        @Override
+        public Boolean confirmWithToken(User newFriend, String confirmToken) {
+            return managerIn(friendshipPartition(user, newFriend)).confirmWithToken(newFriend, confirmToken);
+        }
+
+        @Override
+        public FriendStatus getStatusWithUser(User otherUser) {
+            return managerIn(friendshipPartition(user, otherUser)).getStatusWithUser(otherUser);
+        }
+
+        @Override
+        public Map<URI, FriendStatus> getStatusWithUsers(Collection<User> otherUsers) {
+            Map<Integer, List<User>> otherUsersByPartition = new HashMap<>();
+            for (User otherUser : otherUsers) {
+                otherUsersByPartition.computeIfAbsent(
+                        friendshipPartition(user, otherUser),
+                        partition -> new ArrayList<>()
+                ).add(otherUser);
+            }
+            Map<URI, FriendStatus> statuses = new HashMap<>();
+            for (Map.Entry<Integer, List<User>> partitionOtherUsers : otherUsersByPartition.entrySet()) {
+                statuses.putAll(
+                        managerIn(partitionOtherUsers.getKey()).getStatusWithUsers(partitionOtherUsers.getValue())
+                );
+            }
+            return statuses;
+        }
+
+        @Override
+        public Map<URI, FriendPojo> list() {
+            Map<URI, FriendPojo> friends = new HashMap<>();
+            for (int i = 0; i < partitions.size(); i++) {
+                friends.putAll(managerIn(i).list());
+            }
+            return friends;
+        }
+
+        @Override
+        public FriendList friendList() {
+            List<String> usernames = new ArrayList<>();
+            List<FriendStatus> statuses = new ArrayList<>();
+            for (int i = 0; i < partitions.size(); i++) {
+                FriendList partitionFriendList = managerIn(i).friendList();
+                for (int j = 0; j < partitionFriendList.size(); j++) {
+                    usernames.add(partitionFriendList.getUsername(j));
+                    statuses.add(partitionFriendList.getStatus(j));
+                }
+            }
+            return new FriendList(usernames, statuses);
+        }
+
+        @Override
+        public FriendList list(Integer offset, Integer limit, FriendStatus statusFilter) {
+            return friendList().page(offset, limit, statusFilter);
+        }
+
+        private FriendManagerNeo4j managerIn(Integer partition) {
+            FriendManagerNeo4j friendManager = new FriendManagerNeo4j(user);
+            friendManager.driver = partitions.get(partition).driver;
+            friendManager.sessions = partitionSessions.get(partition);
+            friendManager.friendListCache = FriendListCache.disabled();
+            friendManager.inFlightLookups = InFlightLookups.disabled();
+            friendManager.friendSuggestionIndex = FriendSuggestionIndex.disabled();
+            return friendManager;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.UserUris;
+import guru.bubl.module.model.forgot_password.UserForgotPasswordToken;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import guru.bubl.module.repository.user.UserRepository;
+import org.apache.commons.lang.StringUtils;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Answers username prefix searches, as typed in autocompletes, from an in
+ * memory index of all usernames instead of the fulltext index. Search
+ * terms that are not plain prefixes still go to the fulltext index. The
+ * index is warmed at construction, learns about users created through
+ * this repository and, through UserRepositoryLifecycle, those created in
+ * batches, and is periodically rebuilt from the database to catch users
+ * created elsewhere.
+ *
+ * Matching differs from the fulltext index. A plain prefix matches the
+ * usernames starting with it, case insensitive, in lexicographic order,
+ * where the fulltext index matches any word of the username and orders
+ * by relevance. Get it from the injector for the limited search.
+ */
+public class PrefixIndexedUserRepository implements UserRepository, AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(PrefixIndexedUserRepository.class.getName());
+
+    private final UserRepository userRepository;
+
+    private final Neo4jSessions sessions;
+
+    private final UsernamePrefixIndex index = new UsernamePrefixIndex();
+
+    private final ScheduledExecutorService reconciler;
+
+    public PrefixIndexedUserRepository(UserRepository userRepository, Neo4jSessions sessions, Long reconcilePeriodInSeconds) {
+        this.userRepository = userRepository;
+        this.sessions = sessions;
+        reconcile();
+        this.reconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "username-prefix-index-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reconciler.scheduleWithFixedDelay(
+                this::reconcileQuietly,
+                reconcilePeriodInSeconds,
+                reconcilePeriodInSeconds,
+                TimeUnit.SECONDS
+        );
+    }
+
+    void addUser(User user) {
+        index.add(user.username());
+    }
+
+    public void reconcile() {
+        List<String> usernames = new ArrayList<>();
+        try (Session session = sessions.read()) {
+            Result sr = session.run(
+                    "MATCH(user:User) RETURN user.uri as uri"
+            );
+            while (sr.hasNext()) {
+                usernames.add(
+                        UserUris.ownerUserNameFromUri(
+                                URI.create(sr.next().get("uri").asString())
+                        )
+                );
+            }
+        }
+        index.rebuild(usernames);
+    }
+
+    @Override
+    public User createUser(User user) {
+        User created = userRepository.createUser(user);
+        addUser(user);
+        return created;
+    }
+
+    @Override
+    public User findByUsername(String username) throws NonExistingUserException {
+        return userRepository.findByUsername(username);
+    }
+
+    @Override
+    public User findByEmail(String email) throws NonExistingUserException {
+        return userRepository.findByEmail(email);
+    }
+
+    @Override
+    public Boolean usernameExists(String username) {
+        return userRepository.usernameExists(username);
+    }
+
+    @Override
+    public Boolean emailExists(String email) {
+        return userRepository.emailExists(email);
+    }
+
+    @Override
+    public void generateForgetPasswordToken(User user, UserForgotPasswordToken userForgotPasswordToken) {
+        userRepository.generateForgetPasswordToken(user, userForgotPasswordToken);
+    }
+
+    @Override
+    public UserForgotPasswordToken getUserForgetPasswordToken(User user) {
+        return userRepository.getUserForgetPasswordToken(user);
+    }
+
+    @Override
+    public void changePassword(User user) {
+        userRepository.changePassword(user);
+    }
+
+    @Override
+    public void updatePreferredLocales(User user) {
+        userRepository.updatePreferredLocales(user);
+    }
+
+    @Override
+    public Date updateConsultNotificationDate(User user) {
+        return userRepository.updateConsultNotificationDate(user);
+    }
+
+    /*
+     * At most UserRepositoryNeo4j.DEFAULT_SEARCH_LIMIT users.
+     */
+    public List<User> searchUsers(String searchTerm, User user) {
+        return searchUsers(searchTerm, user, UserRepositoryNeo4j.DEFAULT_SEARCH_LIMIT);
+    }
+
+    public List<User> searchUsers(String searchTerm, User user, Integer limit) {
+        if (StringUtils.isBlank(searchTerm) || !isPlainPrefix(searchTerm.trim())) {
+            List<User> users = userRepository.searchUsers(searchTerm, user);
+            return users.size() > limit ? new ArrayList<>(users.subList(0, limit)) : users;
+        }
+        List<User> users = new ArrayList<>();
+        for (String username : index.startingWith(searchTerm.trim(), limit, user == null ? null : user.username())) {
+            users.add(
+                    User.withUsername(username)
+            );
+        }
+        return users;
+    }
+
+    public Integer size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() {
+        reconciler.shutdownNow();
+    }
+
+    private void reconcileQuietly() {
+        try {
+            reconcile();
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.WARNING, "Could not reconcile the username prefix index", exception);
+        }
+    }
+
+    private static Boolean isPlainPrefix(String searchTerm) {
+        for (int i = 0; i < searchTerm.length(); i++) {
+            if (!Character.isLetterOrDigit(searchTerm.charAt(i)) && "_-.".indexOf(searchTerm.charAt(i)) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
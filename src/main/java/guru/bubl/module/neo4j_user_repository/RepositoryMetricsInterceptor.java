@@ -0,0 +1,82 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import java.util.Collection;
+import java.util.Map;
+
+/*
+ * Times the public methods of the repository and friend manager and
+ * reports them to the sink. Bound by Neo4jUserRepositoryModule only when a
+ * sink is configured, otherwise the methods are not intercepted at all.
+ */
+public class RepositoryMetricsInterceptor implements MethodInterceptor {
+
+    private static final ThreadLocal<String> CURRENT_METHOD = new ThreadLocal<>();
+
+    private final RepositoryMetricsSink metricsSink;
+
+    public RepositoryMetricsInterceptor(RepositoryMetricsSink metricsSink) {
+        this.metricsSink = metricsSink;
+    }
+
+    /*
+     * Outermost intercepted method running on this thread, the one server
+     * times of queries are attributed to.
+     */
+    static String currentMethod() {
+        return CURRENT_METHOD.get();
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        String method = invocation.getMethod().getDeclaringClass().getSimpleName() +
+                "." + invocation.getMethod().getName();
+        String outerMethod = CURRENT_METHOD.get();
+        if (outerMethod == null) {
+            CURRENT_METHOD.set(method);
+        }
+        long start = System.nanoTime();
+        Object result = null;
+        Boolean failed = true;
+        try {
+            result = invocation.proceed();
+            failed = false;
+            return result;
+        } finally {
+            metricsSink.recordCall(
+                    method,
+                    System.nanoTime() - start,
+                    sizeOf(result),
+                    failed
+            );
+            if (outerMethod == null) {
+                CURRENT_METHOD.remove();
+            }
+        }
+    }
+
+    private static Integer sizeOf(Object result) {
+        if (result == null) {
+            return 0;
+        }
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        if (result instanceof Map) {
+            return ((Map<?, ?>) result).size();
+        }
+        if (result instanceof FriendList) {
+            return ((FriendList) result).size();
+        }
+        if (result instanceof UserBatchResult) {
+            return ((UserBatchResult) result).getUsers().size();
+        }
+        return 1;
+    }
+}
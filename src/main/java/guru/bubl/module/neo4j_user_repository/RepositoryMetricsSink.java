@@ -0,0 +1,21 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+/*
+ * Receives the measurements of the repository and friend manager methods.
+ * Methods are named ClassName.methodName. Implementations are called on the
+ * request threads and should not block.
+ */
+public interface RepositoryMetricsSink {
+
+    void recordCall(String method, Long latencyInNanos, Integer resultSize, Boolean failed);
+
+    /*
+     * Server side times of one query run by the method, taken from the
+     * result summary.
+     */
+    void recordServerTimes(String method, Long resultAvailableAfterInMillis, Long resultConsumedAfterInMillis);
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/*
+ * Lets concurrent loads of the same key share one call to the loader, the
+ * callers that arrive while it runs get its result or its exception. The
+ * load is forgotten as soon as it completes so nothing is served after
+ * that, forget also detaches a running load after a write to its key so
+ * callers arriving after the write start a new one. The variant separates
+ * loads of the same key that must not be shared, a different page or
+ * bookmark for example.
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<Key<K>, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private static class Key<K> {
+        private final K key;
+        private final Object variant;
+
+        private Key(K key, Object variant) {
+            this.key = key;
+            this.variant = variant;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key<?> otherKey = (Key<?>) other;
+            return key.equals(otherKey.key) && Objects.equals(variant, otherKey.variant);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + Objects.hashCode(variant);
+        }
+    }
+
+    V load(K key, Object variant, Supplier<V> loader) {
+        Key<K> flightKey = new Key<>(key, variant);
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> shared = inFlight.putIfAbsent(flightKey, own);
+        if (shared != null) {
+            return join(shared);
+        }
+        try {
+            V value = loader.get();
+            own.complete(value);
+            return value;
+        } catch (RuntimeException | Error exception) {
+            own.completeExceptionally(exception);
+            throw exception;
+        } finally {
+            inFlight.remove(flightKey, own);
+        }
+    }
+
+    void forget(K key) {
+        inFlight.keySet().removeIf(
+                flightKey -> flightKey.key.equals(key)
+        );
+    }
+
+    Integer numberInFlight() {
+        return inFlight.size();
+    }
+
+    private static <V> V join(CompletableFuture<V> shared) {
+        try {
+            return shared.get();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(exception);
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CompletionException(cause);
+        }
+    }
+}
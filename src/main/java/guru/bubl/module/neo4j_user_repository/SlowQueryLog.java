@@ -0,0 +1,172 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.summary.Plan;
+import org.neo4j.driver.summary.ProfiledPlan;
+import org.neo4j.driver.summary.ResultSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Logs the queries whose server side time is above the threshold, with
+ * secrets redacted from their parameters. A sample of the queries is run
+ * again in the background, with PROFILE for reads and EXPLAIN for writes
+ * so writes are not applied twice, and plans scanning labels or all nodes
+ * instead of using an index are flagged. Queries are profiled on the
+ * database of the sessions that ran them, the ones run in transactions
+ * included. UserRepositoryLifecycle stops the profiler.
+ */
+public class SlowQueryLog implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(SlowQueryLog.class.getName());
+
+    private static final Set<String> REDACTED_PARAMETERS = new HashSet<>(Arrays.asList(
+            "salt",
+            "passwordHash",
+            "password",
+            "token",
+            "confirmToken",
+            "forgetPasswordToken"
+    ));
+
+    private static final Set<String> SCAN_OPERATORS = new HashSet<>(Arrays.asList(
+            "NodeByLabelScan",
+            "AllNodesScan"
+    ));
+
+    private final Long thresholdInMillis;
+
+    private final Double profileSampleRate;
+
+    private final ThreadPoolExecutor profiler;
+
+    public SlowQueryLog(Long thresholdInMillis, Double profileSampleRate) {
+        this.thresholdInMillis = thresholdInMillis;
+        this.profileSampleRate = profileSampleRate;
+        this.profiler = new ThreadPoolExecutor(
+                1,
+                1,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "slow-query-profiler");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy()
+        );
+    }
+
+    void record(String method, String query, Object parameters, ResultSummary summary, AccessMode accessMode, Neo4jSessions sessions) {
+        Long serverTimeInMillis = summary.resultAvailableAfter(TimeUnit.MILLISECONDS) +
+                summary.resultConsumedAfter(TimeUnit.MILLISECONDS);
+        if (serverTimeInMillis >= thresholdInMillis) {
+            LOGGER.warning(
+                    "Slow query in " + method + " took " + serverTimeInMillis + "ms: " +
+                            query + " with " + redact(parameters)
+            );
+        }
+        if (ThreadLocalRandom.current().nextDouble() < profileSampleRate) {
+            profiler.execute(
+                    () -> profile(method, query, parameters, accessMode, sessions)
+            );
+        }
+    }
+
+    @Override
+    public void close() {
+        profiler.shutdownNow();
+    }
+
+    static String redact(Object parameters) {
+        if (parameters instanceof Value) {
+            Value value = (Value) parameters;
+            return value.isNull() ? "{}" : redact(value.asObject());
+        }
+        if (parameters instanceof Map) {
+            StringBuilder redacted = new StringBuilder("{");
+            for (Map.Entry<?, ?> parameter : ((Map<?, ?>) parameters).entrySet()) {
+                if (redacted.length() > 1) {
+                    redacted.append(", ");
+                }
+                redacted.append(parameter.getKey()).append(": ").append(
+                        REDACTED_PARAMETERS.contains(String.valueOf(parameter.getKey())) ?
+                                "<redacted>" :
+                                redact(parameter.getValue())
+                );
+            }
+            return redacted.append("}").toString();
+        }
+        if (parameters instanceof List) {
+            List<?> values = (List<?>) parameters;
+            StringBuilder redacted = new StringBuilder("[");
+            for (int i = 0; i < values.size() && i < 10; i++) {
+                redacted.append(i == 0 ? "" : ", ").append(redact(values.get(i)));
+            }
+            return redacted.append(values.size() > 10 ? ", ... " + values.size() + " items]" : "]").toString();
+        }
+        return String.valueOf(parameters);
+    }
+
+    private void profile(String method, String query, Object parameters, AccessMode accessMode, Neo4jSessions sessions) {
+        Boolean isRead = accessMode == AccessMode.READ;
+        String profiledQuery = (isRead ? "PROFILE " : "EXPLAIN ") + query;
+        try (Session session = sessions.unobserved(accessMode)) {
+            ResultSummary summary;
+            if (parameters instanceof Value) {
+                summary = session.run(profiledQuery, (Value) parameters).consume();
+            } else if (parameters instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> parametersMap = (Map<String, Object>) parameters;
+                summary = session.run(profiledQuery, parametersMap).consume();
+            } else {
+                summary = session.run(profiledQuery).consume();
+            }
+            List<String> operators = new ArrayList<>();
+            Long dbHits = isRead && summary.hasProfile() ?
+                    collect(summary.profile(), operators) :
+                    collect(summary.plan(), operators);
+            Boolean scans = false;
+            for (String operator : operators) {
+                scans |= SCAN_OPERATORS.contains(operator.split("@")[0]);
+            }
+            LOGGER.log(
+                    scans ? Level.WARNING : Level.INFO,
+                    (scans ? "Scanning plan" : "Plan") + " in " + method + ": " + query +
+                            " operators " + operators + (isRead ? " db hits " + dbHits : "")
+            );
+        } catch (RuntimeException exception) {
+            LOGGER.log(Level.FINE, "Could not profile " + query, exception);
+        }
+    }
+
+    private static Long collect(Plan plan, List<String> operators) {
+        if (plan == null) {
+            return 0L;
+        }
+        operators.add(plan.operatorType());
+        Long dbHits = plan instanceof ProfiledPlan ? ((ProfiledPlan) plan).dbHits() : 0L;
+        for (Plan child : plan.children()) {
+            dbHits += collect(child, operators);
+        }
+        return dbHits;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Per item outcome of a batch operation, keyed by the identifier the
+ * caller gave. Rejected identifiers are the users that were not found by a
+ * lookup or that already existed, or were duplicated, for a creation.
+ */
+public class UserBatchResult {
+
+    private final Map<String, User> users = new LinkedHashMap<>();
+
+    private final Set<String> rejected = new LinkedHashSet<>();
+
+    public Map<String, User> getUsers() {
+        return users;
+    }
+
+    public Set<String> getRejected() {
+        return rejected;
+    }
+
+    void succeeded(String identifier, User user) {
+        users.put(identifier, user);
+    }
+
+    void rejected(String identifier) {
+        rejected.add(identifier);
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+
+import javax.inject.Inject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Exports the User nodes and the friend relationships between them to
+ * NDJSON, one user or friendship per line, and imports them back. Users
+ * are paged by uri so a dump holds at most one page in memory, all users
+ * are written before the friendships so an import creates both ends of
+ * a friendship first.
+ *
+ * Imports are idempotent, users are merged by uri and friendships by
+ * their two ends. The number of lines committed is reported after every
+ * chunk, an interrupted import is resumed by skipping that many lines.
+ * Imports write to the database directly, the in memory indexes of the
+ * repository are rebuilt and the user cache emptied once an import
+ * completes. Other processes of the application still need their own
+ * rebuild, see UserRepositoryLifecycle.rebuildIndexes.
+ */
+public class UserGraphNdjson {
+
+    public static final Integer DEFAULT_PAGE_SIZE = 1000;
+
+    static final String TYPE = "type",
+            USER_TYPE = "user",
+            FRIEND_TYPE = "friend";
+
+    private static final Set<String> SECRET_PROPERTIES = new HashSet<>(Arrays.asList(
+            UserRepositoryNeo4j.props.salt.name(),
+            UserRepositoryNeo4j.props.passwordHash.name(),
+            UserRepositoryNeo4j.props.forgetPasswordToken.name(),
+            UserRepositoryNeo4j.props.changePasswordExpirationDate.name(),
+            "confirmToken"
+    ));
+
+    private static final String USERS_PAGE_QUERY = "MATCH(user:Resource) " +
+            "WHERE user.uri > $after AND user:User " +
+            "RETURN user.uri as uri, properties(user) as properties " +
+            "ORDER BY user.uri LIMIT $pageSize",
+            FRIENDS_PAGE_QUERY = "MATCH(user:Resource) " +
+                    "WHERE user.uri > $after AND user:User " +
+                    "WITH user ORDER BY user.uri LIMIT $pageSize " +
+                    "OPTIONAL MATCH (user)-[friendship:friend]->(friend:User) " +
+                    "RETURN user.uri as uri, friend.uri as friendUri, " +
+                    "friendship.status as status, friendship.confirmToken as confirmToken",
+            IMPORT_USERS_QUERY = "UNWIND $users as properties " +
+                    "MERGE(user:Resource{uri:properties.uri}) " +
+                    "SET user += properties, user:User",
+            IMPORT_FRIENDS_QUERY = "UNWIND $friendships as friendship " +
+                    "MATCH(user:Resource{uri:friendship.uri}), (friend:Resource{uri:friendship.friendUri}) " +
+                    "MERGE (user)-[imported:friend]->(friend) " +
+                    "SET imported.status = friendship.status, " +
+                    "imported.confirmToken = coalesce(friendship.confirmToken, imported.confirmToken)";
+
+    @Inject
+    protected Neo4jSessions sessions;
+
+    private UserRepositoryLifecycle lifecycle;
+
+    @com.google.inject.Inject(optional = true)
+    public void setLifecycle(UserRepositoryLifecycle lifecycle) {
+        this.lifecycle = lifecycle;
+    }
+
+    public Long export(Writer writer, Boolean includeSecrets) {
+        return export(writer, includeSecrets, DEFAULT_PAGE_SIZE);
+    }
+
+    public Long export(Writer writer, Boolean includeSecrets, Integer pageSize) {
+        try {
+            return exportUsers(writer, includeSecrets, pageSize) +
+                    exportFriendships(writer, includeSecrets, pageSize);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    public Long importFrom(BufferedReader reader, Integer chunkSize, Long linesToSkip, LongConsumer onLinesCommitted) {
+        List<Map<String, Object>> chunk = new ArrayList<>(chunkSize);
+        String chunkType = null;
+        Long lineNumber = 0L;
+        Long imported = 0L;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber <= linesToSkip || line.trim().isEmpty()) {
+                    continue;
+                }
+                Map<String, Object> object = NdjsonCodec.read(line);
+                Object type = object.remove(TYPE);
+                if (!USER_TYPE.equals(type) && !FRIEND_TYPE.equals(type)) {
+                    throw new IllegalArgumentException(
+                            "Unknown type " + type + " on line " + lineNumber
+                    );
+                }
+                if (!type.equals(chunkType) && !chunk.isEmpty()) {
+                    imported += importChunk(chunkType, chunk);
+                    onLinesCommitted.accept(lineNumber - 1);
+                }
+                chunkType = (String) type;
+                chunk.add(object);
+                if (chunk.size() >= chunkSize) {
+                    imported += importChunk(chunkType, chunk);
+                    onLinesCommitted.accept(lineNumber);
+                }
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        if (!chunk.isEmpty()) {
+            imported += importChunk(chunkType, chunk);
+        }
+        onLinesCommitted.accept(lineNumber);
+        if (lifecycle != null) {
+            lifecycle.rebuildIndexes();
+        }
+        return imported;
+    }
+
+    private Long exportUsers(Writer writer, Boolean includeSecrets, Integer pageSize) throws IOException {
+        Long exported = 0L;
+        String after = "";
+        Integer pageLength;
+        do {
+            pageLength = 0;
+            try (Session session = sessions.read()) {
+                Result sr = session.run(
+                        USERS_PAGE_QUERY,
+                        parameters(
+                                "after", after,
+                                "pageSize", pageSize
+                        )
+                );
+                while (sr.hasNext()) {
+                    Record record = sr.next();
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put(TYPE, USER_TYPE);
+                    for (Map.Entry<String, Object> property : record.get("properties").asMap().entrySet()) {
+                        if (includeSecrets || !SECRET_PROPERTIES.contains(property.getKey())) {
+                            line.put(property.getKey(), property.getValue());
+                        }
+                    }
+                    writeLine(writer, line);
+                    after = record.get("uri").asString();
+                    pageLength++;
+                }
+            }
+            exported += pageLength;
+        } while (pageLength.equals(pageSize));
+        return exported;
+    }
+
+    private Long exportFriendships(Writer writer, Boolean includeSecrets, Integer pageSize) throws IOException {
+        Long exported = 0L;
+        String after = "";
+        Boolean hasMoreUsers = true;
+        while (hasMoreUsers) {
+            Set<String> usersInPage = new HashSet<>();
+            try (Session session = sessions.read()) {
+                Result sr = session.run(
+                        FRIENDS_PAGE_QUERY,
+                        parameters(
+                                "after", after,
+                                "pageSize", pageSize
+                        )
+                );
+                while (sr.hasNext()) {
+                    Record record = sr.next();
+                    String uri = record.get("uri").asString();
+                    usersInPage.add(uri);
+                    if (uri.compareTo(after) > 0) {
+                        after = uri;
+                    }
+                    if (record.get("friendUri").isNull()) {
+                        continue;
+                    }
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put(TYPE, FRIEND_TYPE);
+                    line.put("uri", uri);
+                    line.put("friendUri", record.get("friendUri").asString());
+                    line.put("status", record.get("status").asString());
+                    if (includeSecrets && !record.get("confirmToken").isNull()) {
+                        line.put("confirmToken", record.get("confirmToken").asString());
+                    }
+                    writeLine(writer, line);
+                    exported++;
+                }
+            }
+            hasMoreUsers = usersInPage.size() == pageSize;
+        }
+        return exported;
+    }
+
+    private Long importChunk(String type, List<Map<String, Object>> chunk) {
+        Boolean isUsers = USER_TYPE.equals(type);
+        List<Map<String, Object>> values = new ArrayList<>(chunk);
+        chunk.clear();
+        try (Session session = sessions.write()) {
+            session.writeTransaction(
+                    tx -> tx.run(
+                            isUsers ? IMPORT_USERS_QUERY : IMPORT_FRIENDS_QUERY,
+                            parameters(
+                                    isUsers ? "users" : "friendships", values
+                            )
+                    ).consume()
+            );
+        }
+        return (long) values.size();
+    }
+
+    private static void writeLine(Writer writer, Map<String, Object> line) throws IOException {
+        writer.write(NdjsonCodec.write(line));
+        writer.write('\n');
+    }
+}
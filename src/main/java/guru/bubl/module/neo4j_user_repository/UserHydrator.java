@@ -0,0 +1,99 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.UserUris;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.URI;
+import java.util.Date;
+
+/*
+ * Maps records returned with UserRepositoryNeo4j.returnQueryPart to users.
+ * Columns are read by position and the private User fields are resolved
+ * once instead of through reflection for every user loaded.
+ */
+final class UserHydrator {
+
+    static final int URI_COLUMN = 0,
+            EMAIL_COLUMN = 1,
+            CONSULT_NOTIFICATION_DATE_COLUMN = 2,
+            PREFERRED_LOCALES_COLUMN = 3,
+            SALT_COLUMN = 4,
+            PASSWORD_HASH_COLUMN = 5;
+
+    private static final VarHandle SALT_FIELD, PASSWORD_HASH_FIELD;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(
+                    User.class,
+                    MethodHandles.lookup()
+            );
+            SALT_FIELD = lookup.findVarHandle(User.class, "salt", String.class);
+            PASSWORD_HASH_FIELD = lookup.findVarHandle(User.class, "passwordHash", String.class);
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private UserHydrator() {
+    }
+
+    static User fromRecord(Record record) {
+        User user = User.withEmailAndUsername(
+                record.get(EMAIL_COLUMN).asString(),
+                UserUris.ownerUserNameFromUri(
+                        URI.create(record.get(URI_COLUMN).asString())
+                )
+        );
+        user.setPreferredLocales(
+                record.get(PREFERRED_LOCALES_COLUMN).asString()
+        );
+        Value date = record.get(CONSULT_NOTIFICATION_DATE_COLUMN);
+        if (!date.isNull()) {
+            user.setConsultNotificationDate(
+                    new Date(date.asLong())
+            );
+        }
+        setSalt(user, record.get(SALT_COLUMN).asString());
+        setPasswordHash(user, record.get(PASSWORD_HASH_COLUMN).asString());
+        return user;
+    }
+
+    /*
+     * Distinct user with the same values, for users shared between callers
+     * that may modify them.
+     */
+    static User copy(User user) {
+        User copy = User.withEmailAndUsername(
+                user.email(),
+                user.username()
+        );
+        copy.setPreferredLocales(
+                user.getPreferredLocalesAsString()
+        );
+        if (user.getConsultNotificationDate() != null) {
+            copy.setConsultNotificationDate(
+                    new Date(user.getConsultNotificationDate().getTime())
+            );
+        }
+        setSalt(copy, (String) SALT_FIELD.get(user));
+        setPasswordHash(copy, (String) PASSWORD_HASH_FIELD.get(user));
+        return copy;
+    }
+
+    static void setSalt(User user, String salt) {
+        SALT_FIELD.set(user, salt);
+    }
+
+    static void setPasswordHash(User user, String passwordHash) {
+        PASSWORD_HASH_FIELD.set(user, passwordHash);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.neo4j.driver.Driver;
+
+/*
+ * One database holding a share of the users, a null database is the
+ * default database of the driver.
+ */
+public class UserPartition {
+
+    private final Driver driver;
+
+    private final String database;
+
+    public UserPartition(Driver driver) {
+        this(driver, null);
+    }
+
+    public UserPartition(Driver driver, String database) {
+        this.driver = driver;
+        this.database = database;
+    }
+
+    public Driver getDriver() {
+        return driver;
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Starts the background work configured in Neo4jUserRepositoryModule when
+ * the injector is created and stops it, last started first, on close.
+ * Bound as an eager singleton, get it from the injector to close it when
+ * the application stops, otherwise it is closed when the JVM shuts down.
+ * Also gives the users created in batches to the in memory indexes and
+ * rebuilds them after users were written without going through the
+ * repository.
+ */
+@Singleton
+public class UserRepositoryLifecycle implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(UserRepositoryLifecycle.class.getName());
+
+    private final List<AutoCloseable> started = new ArrayList<>();
+
+    private final List<Runnable> rebuilds = new ArrayList<>();
+
+    private final List<Consumer<User>> additions = new ArrayList<>();
+
+    @Inject
+    UserRepositoryLifecycle(FriendSuggestionIndex friendSuggestionIndex) {
+        friendSuggestionIndex.start();
+        started.add(friendSuggestionIndex);
+        if (friendSuggestionIndex.isEnabled()) {
+            rebuilds.add(friendSuggestionIndex::rebuild);
+        }
+        Runtime.getRuntime().addShutdownHook(
+                new Thread(this::close, "user-repository-shutdown")
+        );
+    }
+
+    @com.google.inject.Inject(optional = true)
+    void setForgetPasswordTokenSweeper(ForgetPasswordTokenSweeper forgetPasswordTokenSweeper) {
+        forgetPasswordTokenSweeper.start();
+        stopOnClose(forgetPasswordTokenSweeper);
+    }
+
+    @com.google.inject.Inject(optional = true)
+    void setSlowQueryLog(SlowQueryLog slowQueryLog) {
+        stopOnClose(slowQueryLog);
+    }
+
+    synchronized void stopOnClose(AutoCloseable closeable) {
+        started.add(closeable);
+    }
+
+    synchronized void rebuildWithIndexes(Runnable rebuild) {
+        rebuilds.add(rebuild);
+    }
+
+    synchronized void addToIndexes(Consumer<User> addition) {
+        additions.add(addition);
+    }
+
+    void usersCreated(Collection<User> users) {
+        List<Consumer<User>> additions;
+        synchronized (this) {
+            additions = new ArrayList<>(this.additions);
+        }
+        for (Consumer<User> addition : additions) {
+            for (User user : users) {
+                addition.accept(user);
+            }
+        }
+    }
+
+    /*
+     * Rebuilds the existence filter, the username prefix index and the
+     * friend suggestion index from the database and empties the user
+     * cache, those that are enabled.
+     */
+    public void rebuildIndexes() {
+        List<Runnable> rebuilds;
+        synchronized (this) {
+            rebuilds = new ArrayList<>(this.rebuilds);
+        }
+        for (Runnable rebuild : rebuilds) {
+            rebuild.run();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (int i = started.size() - 1; i >= 0; i--) {
+            try {
+                started.get(i).close();
+            } catch (Exception exception) {
+                LOGGER.log(Level.WARNING, "Could not stop " + started.get(i).getClass().getSimpleName(), exception);
+            }
+        }
+        started.clear();
+    }
+}
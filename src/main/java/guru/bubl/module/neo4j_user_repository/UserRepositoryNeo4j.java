@@ -16,13 +16,21 @@ import org.neo4j.driver.Driver;
 import org.neo4j.driver.Record;
 import org.neo4j.driver.Session;
 import org.neo4j.driver.Result;
+import org.neo4j.driver.exceptions.ClientException;
 
 import javax.inject.Inject;
-import java.lang.reflect.Field;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import static guru.bubl.module.neo4j_graph_manipulator.graph.RestApiUtilsNeo4j.map;
 import static org.neo4j.driver.Values.parameters;
@@ -38,6 +46,33 @@ public class UserRepositoryNeo4j implements UserRepository {
                             "user." + props.salt + "," +
                             "user." + props.passwordHash;
 
+    static final String FIND_BY_URI_QUERY = "MATCH(user:Resource{uri:$uri}) " + returnQueryPart,
+            FIND_BY_EMAIL_QUERY = "MATCH(user:User{email:$email}) " + returnQueryPart,
+            GENERATE_FORGET_PASSWORD_TOKEN_QUERY = "MATCH(user:Resource{uri:$uri}) SET user." +
+                    props.forgetPasswordToken + "=$token SET user." +
+                    props.changePasswordExpirationDate + "=$expirationDate",
+            GET_FORGET_PASSWORD_TOKEN_QUERY = "MATCH (user:Resource{uri:$uri}) RETURN user." +
+                    props.forgetPasswordToken + ", user." +
+                    props.changePasswordExpirationDate,
+            FIND_BY_FORGET_PASSWORD_TOKEN_QUERY = "MATCH(user:User{" + props.forgetPasswordToken + ":$token}) " +
+                    "WHERE user." + props.changePasswordExpirationDate + " > $now " + returnQueryPart,
+            USERNAME_EXISTS_QUERY = "MATCH(n:Resource{uri:$uri}) RETURN n.email",
+            EMAIL_EXISTS_QUERY = "MATCH(n:User{email:$email}) RETURN count(n) as number";
+
+    private static final String FIND_BY_URIS_QUERY = "UNWIND $uris as uri MATCH(user:Resource{uri:uri}) " + returnQueryPart,
+            FIND_BY_EMAILS_QUERY = "UNWIND $emails as email MATCH(user:User{email:email}) " + returnQueryPart;
+
+    public static final Integer DEFAULT_BATCH_SIZE = 1000,
+            DEFAULT_SEARCH_LIMIT = 50,
+            MAX_SEARCH_TERM_LENGTH = 100;
+
+    static final String SEARCH_QUERY = "CALL db.index.fulltext.queryNodes('" +
+            UserSchemaNeo4j.USERNAME_FULLTEXT_INDEX + "', $username) YIELD node " +
+            "WHERE node.uri <> $uri RETURN node.uri as uri",
+            LUCENE_SPECIAL_CHARACTERS = "+-&|!(){}[]^\"~*?:\\/";
+
+    static final String CONSTRAINT_VALIDATION_FAILED = "Neo.ClientError.Schema.ConstraintValidationFailed";
+
     enum props {
         username,
         email,
@@ -53,56 +88,79 @@ public class UserRepositoryNeo4j implements UserRepository {
     @Inject
     protected Driver driver;
 
+    @Inject
+    protected Neo4jSessions sessions;
+
+    @Inject
+    protected ConsultNotificationDateBuffer consultNotificationDateBuffer;
+
+    @Inject
+    protected InFlightLookups inFlightLookups;
+
+    private UserRepositoryLifecycle lifecycle;
+
+    @com.google.inject.Inject(optional = true)
+    void setLifecycle(UserRepositoryLifecycle lifecycle) {
+        this.lifecycle = lifecycle;
+    }
+
     @Override
     public User createUser(User user) {
-        if (emailExists(user.email())) {
-            throw new ExistingUserException(
-                    user.email()
-            );
-        }
-        if (usernameExists(user.username())) {
-            throw new ExistingUserException(
-                    user.username()
-            );
-        }
-        try (Session session = driver.session()) {
-            session.run(
-                    "CREATE(:Resource:User $user)",
+        try (Session session = sessions.write()) {
+            Record record = session.run(
+                    "OPTIONAL MATCH(byEmail:User{email:$email}) " +
+                            "WITH count(byEmail) > 0 as emailExists " +
+                            "OPTIONAL MATCH(byUri:Resource{uri:$uri}) " +
+                            "WITH emailExists, count(byUri) > 0 as usernameExists " +
+                            "FOREACH(ignored IN CASE WHEN emailExists OR usernameExists THEN [] ELSE [1] END | " +
+                            "CREATE(:Resource:User $user)) " +
+                            "RETURN emailExists, usernameExists",
                     parameters(
-                            "user",
-                            parameters(
-                                    FriendlyResourceNeo4j.props.uri.name(),
-                                    user.id(),
-                                    props.username.name(),
-                                    user.username(),
-                                    props.email.name(),
-                                    user.email(),
-                                    props.preferredLocales.name(),
-                                    user.getPreferredLocalesAsString(),
-                                    props.creationDate.name(),
-                                    new Date().getTime(),
-                                    props.updateTime.name(),
-                                    new Date().getTime(),
-                                    props.salt.name(),
-                                    user.salt(),
-                                    props.passwordHash.name(),
-                                    user.passwordHash()
-                            )
+                            "email", user.email(),
+                            "uri", user.id(),
+                            "user", userProperties(user)
                     )
-            );
+            ).single();
+            if (record.get("emailExists").asBoolean()) {
+                throw new ExistingUserException(
+                        user.email()
+                );
+            }
+            if (record.get("usernameExists").asBoolean()) {
+                throw new ExistingUserException(
+                        user.username()
+                );
+            }
+            inFlightLookups.forgetUser(user.username());
             return user;
+        } catch (ClientException exception) {
+            throw existingUserExceptionFromConstraintViolation(
+                    exception,
+                    user
+            );
         }
     }
 
+    /*
+     * Concurrent lookups of the same username share one query when in
+     * flight lookups are enabled, callers with different bookmarks do not
+     * share since they may need to see different writes. Each caller gets
+     * its own user.
+     */
     @Override
     public User findByUsername(String username) throws NonExistingUserException {
+        return inFlightLookups.loadUser(
+                username,
+                sessions.lastBookmark(),
+                () -> loadByUsername(username)
+        );
+    }
+
+    private User loadByUsername(String username) {
         URI uri = new UserUris(username).baseUri();
-        try (Session session = driver.session()) {
+        try (Session session = sessions.read()) {
             Result sr = session.run(
-                    String.format(
-                            "MATCH(user:Resource{uri:$uri}) %s",
-                            returnQueryPart
-                    ),
+                    FIND_BY_URI_QUERY,
                     parameters(
                             "uri", uri.toString()
                     )
@@ -119,12 +177,9 @@ public class UserRepositoryNeo4j implements UserRepository {
         if (email.trim().equals("")) {
             throw new NonExistingUserException("");
         }
-        try (Session session = driver.session()) {
+        try (Session session = sessions.read()) {
             Result sr = session.run(
-                    String.format(
-                            "MATCH(user:User{email:$email}) %s",
-                            returnQueryPart
-                    ),
+                    FIND_BY_EMAIL_QUERY,
                     parameters(
                             "email", email
                     )
@@ -136,15 +191,179 @@ public class UserRepositoryNeo4j implements UserRepository {
         }
     }
 
+    public UserBatchResult findByUsernames(Collection<String> usernames) {
+        return findByUsernames(usernames, DEFAULT_BATCH_SIZE);
+    }
+
+    public UserBatchResult findByUsernames(Collection<String> usernames, Integer batchSize) {
+        UserBatchResult result = new UserBatchResult();
+        Map<String, String> usernamesByUri = new LinkedHashMap<>();
+        for (String username : usernames) {
+            usernamesByUri.put(
+                    new UserUris(username).baseUri().toString(),
+                    username
+            );
+        }
+        try (Session session = sessions.read()) {
+            for (List<String> uris : chunks(usernamesByUri.keySet(), batchSize)) {
+                Result sr = session.run(
+                        FIND_BY_URIS_QUERY,
+                        parameters(
+                                "uris", uris
+                        )
+                );
+                while (sr.hasNext()) {
+                    Record record = sr.next();
+                    result.succeeded(
+                            usernamesByUri.get(record.get(UserHydrator.URI_COLUMN).asString()),
+                            UserHydrator.fromRecord(record)
+                    );
+                }
+            }
+        }
+        for (String username : usernamesByUri.values()) {
+            if (!result.getUsers().containsKey(username)) {
+                result.rejected(username);
+            }
+        }
+        return result;
+    }
+
+    public UserBatchResult findByEmails(Collection<String> emails) {
+        return findByEmails(emails, DEFAULT_BATCH_SIZE);
+    }
+
+    public UserBatchResult findByEmails(Collection<String> emails, Integer batchSize) {
+        UserBatchResult result = new UserBatchResult();
+        Set<String> distinctEmails = new LinkedHashSet<>(emails);
+        try (Session session = sessions.read()) {
+            for (List<String> chunk : chunks(distinctEmails, batchSize)) {
+                Result sr = session.run(
+                        FIND_BY_EMAILS_QUERY,
+                        parameters(
+                                "emails", chunk
+                        )
+                );
+                while (sr.hasNext()) {
+                    Record record = sr.next();
+                    result.succeeded(
+                            record.get(UserHydrator.EMAIL_COLUMN).asString(),
+                            UserHydrator.fromRecord(record)
+                    );
+                }
+            }
+        }
+        for (String email : distinctEmails) {
+            if (!result.getUsers().containsKey(email)) {
+                result.rejected(email);
+            }
+        }
+        return result;
+    }
+
+    public UserBatchResult createUsers(Collection<User> users) {
+        return createUsers(users, DEFAULT_BATCH_SIZE);
+    }
+
+    /*
+     * Results are keyed by username. A user whose username or email is
+     * already taken in the database, or whose email is taken earlier in the
+     * same collection, is rejected and the others are still created. A
+     * username given more than once is rejected and none of its users is
+     * created.
+     */
+    public UserBatchResult createUsers(Collection<User> users, Integer batchSize) {
+        UserBatchResult result = new UserBatchResult();
+        Set<String> usernames = new HashSet<>();
+        Set<String> duplicatedUsernames = new HashSet<>();
+        for (User user : users) {
+            if (!usernames.add(user.username())) {
+                duplicatedUsernames.add(user.username());
+            }
+        }
+        Set<String> emails = new HashSet<>();
+        List<User> distinctUsers = new ArrayList<>();
+        for (User user : users) {
+            if (duplicatedUsernames.contains(user.username()) || !emails.add(user.email())) {
+                result.rejected(user.username());
+                continue;
+            }
+            distinctUsers.add(user);
+        }
+        try (Session session = sessions.write()) {
+            for (List<User> chunk : chunks(distinctUsers, batchSize)) {
+                createChunk(session, chunk, result);
+            }
+        }
+        for (User user : distinctUsers) {
+            inFlightLookups.forgetUser(user.username());
+        }
+        if (lifecycle != null) {
+            lifecycle.usersCreated(result.getUsers().values());
+        }
+        return result;
+    }
+
+    private void createChunk(Session session, List<User> chunk, UserBatchResult result) {
+        List<Map<String, Object>> usersProperties = new ArrayList<>(chunk.size());
+        for (User user : chunk) {
+            usersProperties.add(userProperties(user));
+        }
+        Set<String> existingUris = new HashSet<>();
+        try {
+            Result sr = session.run(
+                    "UNWIND $users as user " +
+                            "OPTIONAL MATCH(byEmail:User{email:user.email}) " +
+                            "WITH user, count(byEmail) > 0 as emailExists " +
+                            "OPTIONAL MATCH(byUri:Resource{uri:user.uri}) " +
+                            "WITH user, emailExists, count(byUri) > 0 as usernameExists " +
+                            "FOREACH(ignored IN CASE WHEN emailExists OR usernameExists THEN [] ELSE [1] END | " +
+                            "CREATE(created:Resource:User) SET created = user) " +
+                            "WITH user, emailExists OR usernameExists as alreadyExists " +
+                            "WHERE alreadyExists " +
+                            "RETURN user.uri as uri",
+                    parameters(
+                            "users", usersProperties
+                    )
+            );
+            while (sr.hasNext()) {
+                existingUris.add(sr.next().get("uri").asString());
+            }
+        } catch (ClientException exception) {
+            if (!CONSTRAINT_VALIDATION_FAILED.equals(exception.code())) {
+                throw exception;
+            }
+            /*
+             * A concurrent creation made the whole chunk fail, falling back
+             * to one user at a time.
+             */
+            for (User user : chunk) {
+                try {
+                    result.succeeded(user.username(), createUser(user));
+                } catch (ExistingUserException existingUserException) {
+                    result.rejected(user.username());
+                }
+            }
+            return;
+        }
+        for (User user : chunk) {
+            if (existingUris.contains(user.id())) {
+                result.rejected(user.username());
+            } else {
+                result.succeeded(user.username(), user);
+            }
+        }
+    }
+
     @Override
     public Boolean usernameExists(String username) {
         if (username.trim().equals("")) {
             return false;
         }
         URI uri = new UserUris(username).baseUri();
-        try (Session session = driver.session()) {
+        try (Session session = sessions.read()) {
             return session.run(
-                    "MATCH(n:Resource{uri:$uri}) RETURN n.email",
+                    USERNAME_EXISTS_QUERY,
                     parameters(
                             "uri", uri.toString()
                     )
@@ -157,9 +376,9 @@ public class UserRepositoryNeo4j implements UserRepository {
         if (email.trim().equals("")) {
             return false;
         }
-        try (Session session = driver.session()) {
+        try (Session session = sessions.read()) {
             Record record = session.run(
-                    "MATCH(n:User{email:$email}) RETURN count(n) as number",
+                    EMAIL_EXISTS_QUERY,
                     parameters(
                             "email", email
                     )
@@ -172,14 +391,9 @@ public class UserRepositoryNeo4j implements UserRepository {
     @Override
     public void generateForgetPasswordToken(User user, UserForgotPasswordToken userForgotPasswordToken) {
         URI uri = new UserUris(user.username()).baseUri();
-        String query = String.format(
-                "MATCH(user:Resource{uri:$uri}) SET user.%s=$token SET user.%s=$expirationDate",
-                props.forgetPasswordToken,
-                props.changePasswordExpirationDate
-        );
-        try (Session session = driver.session()) {
+        try (Session session = sessions.write()) {
             session.run(
-                    query,
+                    GENERATE_FORGET_PASSWORD_TOKEN_QUERY,
                     parameters(
                             "uri", uri.toString(),
                             "token", userForgotPasswordToken.getToken(),
@@ -192,32 +406,21 @@ public class UserRepositoryNeo4j implements UserRepository {
     @Override
     public UserForgotPasswordToken getUserForgetPasswordToken(User user) {
         URI uri = new UserUris(user.username()).baseUri();
-        String query = String.format(
-                "MATCH (user:Resource{uri:$uri}) RETURN user.%s, user.%s",
-                props.forgetPasswordToken,
-                props.changePasswordExpirationDate
-        );
-        try (Session session = driver.session()) {
+        try (Session session = sessions.read()) {
             Record record = session.run(
-                    query,
+                    GET_FORGET_PASSWORD_TOKEN_QUERY,
                     parameters(
                             "uri", uri.toString()
                     )
             ).single();
-            String forgetPasswordToken = record.get(
-                    "user." + props.forgetPasswordToken
-            ).asString();
+            String forgetPasswordToken = record.get(0).asString();
             if (forgetPasswordToken.equals("null")) {
                 return UserForgotPasswordToken.empty();
             }
 
-            Date changePasswordExpirationDate = record.get(
-                    "user." + props.changePasswordExpirationDate
-            ).asObject() == null ? null : new Date(
-                    record.get(
-                            "user." + props.changePasswordExpirationDate
-                    ).asLong()
-            );
+            Date changePasswordExpirationDate = record.get(1).isNull() ?
+                    null :
+                    new Date(record.get(1).asLong());
             return UserForgotPasswordToken.withTokenAndExpirationDate(
                     forgetPasswordToken,
                     changePasswordExpirationDate
@@ -225,10 +428,34 @@ public class UserRepositoryNeo4j implements UserRepository {
         }
     }
 
+    /*
+     * Resolves the user a password reset token was generated for through
+     * the index on User.forgetPasswordToken. An expired token resolves to
+     * no user, like a token that was swept.
+     */
+    public User findByForgetPasswordToken(String token) throws NonExistingUserException {
+        if (token.trim().equals("")) {
+            throw new NonExistingUserException("");
+        }
+        try (Session session = sessions.read()) {
+            Result sr = session.run(
+                    FIND_BY_FORGET_PASSWORD_TOKEN_QUERY,
+                    parameters(
+                            "token", token,
+                            "now", new Date().getTime()
+                    )
+            );
+            return userFromResult(
+                    sr,
+                    ""
+            );
+        }
+    }
+
     @Override
     public void changePassword(User user) {
         URI uri = new UserUris(user.username()).baseUri();
-        try (Session session = driver.session()) {
+        try (Session session = sessions.write()) {
             session.run(
                     "MATCH (user:Resource{uri:$uri}) SET user.salt=$salt, user.passwordHash=$passwordHash, user.forgetPasswordToken=$token, user.changePasswordExpirationDate=$expirationDate",
                     parameters(
@@ -240,11 +467,12 @@ public class UserRepositoryNeo4j implements UserRepository {
                     )
             );
         }
+        inFlightLookups.forgetUser(user.username());
     }
 
     @Override
     public void updatePreferredLocales(User user) {
-        try (Session session = driver.session()) {
+        try (Session session = sessions.write()) {
             session.run(
                     "MATCH(user:Resource{uri:$uri}) SET user.preferredLocales=$locale",
                     parameters(
@@ -253,106 +481,194 @@ public class UserRepositoryNeo4j implements UserRepository {
                     )
             );
         }
+        inFlightLookups.forgetUser(user.username());
     }
 
     @Override
     public Date updateConsultNotificationDate(User user) {
-        try (Session session = driver.session()) {
+        if (consultNotificationDateBuffer.isEnabled()) {
+            Date consultNotificationDate = new Date();
+            consultNotificationDateBuffer.put(
+                    user.id(),
+                    consultNotificationDate.getTime()
+            );
+            return consultNotificationDate;
+        }
+        try (Session session = sessions.write()) {
             Record record = session.run(
                     "MATCH(user:Resource{uri:$uri}) SET user.consultNotificationDate=timestamp() RETURN user.consultNotificationDate",
                     parameters(
                             "uri", user.id()
                     )
             ).single();
+            inFlightLookups.forgetUser(user.username());
             return new Date(record.get("user.consultNotificationDate").asLong());
         }
     }
 
+    /*
+     * Every match, as before searches were paged. A short term can match
+     * most users, use the paged variant.
+     */
+    @Deprecated
     public List<User> searchUsers(String searchTerm, User user) {
+        return searchUsers(searchTerm, user, 0, Integer.MAX_VALUE);
+    }
+
+    /*
+     * The fulltext procedure yields nodes by descending score, not sorting
+     * again lets SKIP and LIMIT stop reading the index once the page is
+     * filled.
+     */
+    public List<User> searchUsers(String searchTerm, User user, Integer offset, Integer limit) {
         List<User> users = new ArrayList<>();
-        try (Session session = driver.session()) {
+        if (StringUtils.isBlank(searchTerm)) {
+            return users;
+        }
+        try (Session session = sessions.read()) {
             Result sr = session.run(
-                    "CALL db.index.fulltext.queryNodes('username', $username) YIELD node RETURN node.uri as uri",
+                    SEARCH_QUERY + " SKIP $skip LIMIT $limit",
                     parameters(
-                            "username",
-                            searchTerm + "*"
+                            "username", prefixQuery(searchTerm),
+                            "uri", user == null ? "" : user.id(),
+                            "skip", offset,
+                            "limit", limit
                     )
             );
             while (sr.hasNext()) {
-                Record record = sr.next();
                 users.add(
-                        User.withUsername(
-                                UserUris.ownerUserNameFromUri(
-                                        URI.create(record.get("uri").asString())
-                                )
-                        )
+                        userFromSearchRecord(sr.next())
                 );
             }
             return users;
         }
     }
 
+    /*
+     * The session stays open until the stream is closed, consume it in a
+     * try-with-resources.
+     */
+    public Stream<User> streamUsers(String searchTerm, User user) {
+        if (StringUtils.isBlank(searchTerm)) {
+            return Stream.empty();
+        }
+        Session session = sessions.read();
+        try {
+            return session.run(
+                    SEARCH_QUERY,
+                    parameters(
+                            "username", prefixQuery(searchTerm),
+                            "uri", user == null ? "" : user.id()
+                    )
+            ).stream().map(
+                    UserRepositoryNeo4j::userFromSearchRecord
+            ).onClose(session::close);
+        } catch (RuntimeException exception) {
+            session.close();
+            throw exception;
+        }
+    }
+
+    /*
+     * Each word of the term becomes an escaped prefix, all of them must
+     * match.
+     */
+    static String prefixQuery(String searchTerm) {
+        String term = searchTerm.trim();
+        if (term.length() > MAX_SEARCH_TERM_LENGTH) {
+            throw new IllegalArgumentException(
+                    "search term longer than " + MAX_SEARCH_TERM_LENGTH + " characters"
+            );
+        }
+        StringBuilder query = new StringBuilder(term.length() + 8);
+        for (String word : term.split("\\s+")) {
+            if (query.length() > 0) {
+                query.append(" AND ");
+            }
+            for (int i = 0; i < word.length(); i++) {
+                char character = word.charAt(i);
+                if (LUCENE_SPECIAL_CHARACTERS.indexOf(character) != -1) {
+                    query.append('\\');
+                }
+                query.append(character);
+            }
+            query.append('*');
+        }
+        return query.toString();
+    }
+
+    static User userFromSearchRecord(Record record) {
+        return User.withUsername(
+                UserUris.ownerUserNameFromUri(
+                        URI.create(record.get("uri").asString())
+                )
+        );
+    }
+
+    private Map<String, Object> userProperties(User user) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(FriendlyResourceNeo4j.props.uri.name(), user.id());
+        properties.put(props.username.name(), user.username());
+        properties.put(props.email.name(), user.email());
+        properties.put(props.preferredLocales.name(), user.getPreferredLocalesAsString());
+        Long now = new Date().getTime();
+        properties.put(props.creationDate.name(), now);
+        properties.put(props.updateTime.name(), now);
+        properties.put(props.salt.name(), user.salt());
+        properties.put(props.passwordHash.name(), user.passwordHash());
+        return properties;
+    }
+
+    private static <T> List<List<T>> chunks(Collection<T> values, Integer chunkSize) {
+        List<List<T>> chunks = new ArrayList<>();
+        List<T> chunk = new ArrayList<>(Math.min(values.size(), chunkSize));
+        for (T value : values) {
+            chunk.add(value);
+            if (chunk.size() == chunkSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
     private User userFromResult(Result rs, String identifier) {
         if (!rs.hasNext()) {
             throw new NonExistingUserException(identifier);
         }
-        Record record = rs.single();
-        URI userUri = URI.create(
-                record.get("user.uri").asString()
+        return UserHydrator.fromRecord(
+                rs.single()
         );
-        User user = User.withEmailAndUsername(
-                record.get(
-                        "user." + props.email
-                ).asString(),
-                UserUris.ownerUserNameFromUri(userUri)
-        );
-        user.setPreferredLocales(
-                record.get(
-                        "user." + props.preferredLocales
-                ).asString()
-        );
-        Object date = record.get("user.consultNotificationDate").asObject();
-        if (date != null) {
-            user.setConsultNotificationDate(
-                    new Date(
-                            (Long) date
-                    )
+    }
+
+    /*
+     * Concurrent signups can both pass the existence checks of createUser,
+     * the unique constraints on User.email and Resource.uri then reject the
+     * second CREATE.
+     */
+    private RuntimeException existingUserExceptionFromConstraintViolation(ClientException exception, User user) {
+        if (!CONSTRAINT_VALIDATION_FAILED.equals(exception.code())) {
+            return exception;
+        }
+        String message = exception.getMessage() == null ? "" : exception.getMessage();
+        if (message.contains("`" + props.email + "`")) {
+            return new ExistingUserException(
+                    user.email()
             );
         }
-        setSalt(
-                user,
-                record.get(
-                        "user." + props.salt
-                ).asString()
-        );
-        setPasswordHash(
-                user,
-                record.get(
-                        "user." + props.passwordHash
-                ).asString()
+        return new ExistingUserException(
+                user.username()
         );
-        return user;
     }
 
     protected void setSalt(User user, String salt) {
-        try {
-            Field field = User.class.getDeclaredField("salt");
-            field.setAccessible(true);
-            field.set(user, salt);
-            field.setAccessible(false);
-        } catch (NoSuchFieldException | IllegalAccessException ex) {
-            throw new RuntimeException(ex);
-        }
+        UserHydrator.setSalt(user, salt);
     }
 
     protected void setPasswordHash(User user, String passwordHash) {
-        try {
-            Field field = User.class.getDeclaredField("passwordHash");
-            field.setAccessible(true);
-            field.set(user, passwordHash);
-            field.setAccessible(false);
-        } catch (NoSuchFieldException | IllegalAccessException ex) {
-            throw new RuntimeException(ex);
-        }
+        UserHydrator.setPasswordHash(user, passwordHash);
     }
 }
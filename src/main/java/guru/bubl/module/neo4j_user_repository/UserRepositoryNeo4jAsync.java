@@ -0,0 +1,142 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.UserUris;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import org.apache.commons.lang.StringUtils;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.async.ResultCursor;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Non blocking counterpart of the lookups of UserRepositoryNeo4j, a failed
+ * lookup completes exceptionally with the exception the blocking method
+ * would throw.
+ */
+public class UserRepositoryNeo4jAsync {
+
+    @Inject
+    protected Neo4jSessions sessions;
+
+    public CompletionStage<User> findByUsername(String username) {
+        String uri = new UserUris(username).baseUri().toString();
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        UserRepositoryNeo4j.FIND_BY_URI_QUERY,
+                        parameters(
+                                "uri", uri
+                        )
+                ).thenCompose(
+                        ResultCursor::listAsync
+                ).thenApply(
+                        records -> userFromRecords(records, username)
+                )
+        );
+    }
+
+    public CompletionStage<User> findByEmail(String email) {
+        if (email.trim().equals("")) {
+            return CompletableFuture.failedFuture(
+                    new NonExistingUserException("")
+            );
+        }
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        UserRepositoryNeo4j.FIND_BY_EMAIL_QUERY,
+                        parameters(
+                                "email", email
+                        )
+                ).thenCompose(
+                        ResultCursor::listAsync
+                ).thenApply(
+                        records -> userFromRecords(records, email)
+                )
+        );
+    }
+
+    public CompletionStage<Boolean> usernameExists(String username) {
+        if (username.trim().equals("")) {
+            return CompletableFuture.completedFuture(false);
+        }
+        String uri = new UserUris(username).baseUri().toString();
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        UserRepositoryNeo4j.USERNAME_EXISTS_QUERY,
+                        parameters(
+                                "uri", uri
+                        )
+                ).thenCompose(
+                        ResultCursor::peekAsync
+                ).thenApply(
+                        record -> record != null
+                )
+        );
+    }
+
+    public CompletionStage<Boolean> emailExists(String email) {
+        if (email.trim().equals("")) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        UserRepositoryNeo4j.EMAIL_EXISTS_QUERY,
+                        parameters(
+                                "email", email
+                        )
+                ).thenCompose(
+                        ResultCursor::singleAsync
+                ).thenApply(
+                        record -> record.get("number").asInt() != 0
+                )
+        );
+    }
+
+    @Deprecated
+    public CompletionStage<List<User>> searchUsers(String searchTerm, User user) {
+        return searchUsers(searchTerm, user, 0, Integer.MAX_VALUE);
+    }
+
+    public CompletionStage<List<User>> searchUsers(String searchTerm, User user, Integer offset, Integer limit) {
+        if (StringUtils.isBlank(searchTerm)) {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+        return AsyncSessions.withSession(
+                sessions.readAsync(),
+                session -> session.runAsync(
+                        UserRepositoryNeo4j.SEARCH_QUERY + " SKIP $skip LIMIT $limit",
+                        parameters(
+                                "username", UserRepositoryNeo4j.prefixQuery(searchTerm),
+                                "uri", user == null ? "" : user.id(),
+                                "skip", offset,
+                                "limit", limit
+                        )
+                ).thenCompose(
+                        cursor -> cursor.listAsync(UserRepositoryNeo4j::userFromSearchRecord)
+                )
+        );
+    }
+
+    private User userFromRecords(List<Record> records, String identifier) {
+        if (records.isEmpty()) {
+            throw new NonExistingUserException(identifier);
+        }
+        return UserHydrator.fromRecord(
+                records.get(0)
+        );
+    }
+}
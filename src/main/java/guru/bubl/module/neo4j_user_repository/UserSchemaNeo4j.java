@@ -0,0 +1,183 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.neo4j_graph_manipulator.graph.FriendlyResourceNeo4j;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.exceptions.ClientException;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Creates the constraints and indexes the user and friend queries rely on
+ * and waits for them to be ONLINE. Without them lookups silently fall back
+ * to label scans.
+ */
+public class UserSchemaNeo4j {
+
+    public static final String
+            FAIL_ON_MISSING_SCHEMA = "userSchemaFailOnMissing",
+            USERNAME_FULLTEXT_INDEX = "username";
+
+    private static final Logger LOGGER = Logger.getLogger(UserSchemaNeo4j.class.getName());
+
+    private static final Long AWAIT_INDEXES_SECONDS = 300L;
+
+    enum Requirement {
+        resourceUri(
+                "Resource",
+                FriendlyResourceNeo4j.props.uri.name(),
+                true,
+                false,
+                "CREATE CONSTRAINT resource_uri IF NOT EXISTS ON (n:Resource) ASSERT n.uri IS UNIQUE"
+        ),
+        userEmail(
+                "User",
+                UserRepositoryNeo4j.props.email.name(),
+                true,
+                false,
+                "CREATE CONSTRAINT user_email IF NOT EXISTS ON (n:User) ASSERT n.email IS UNIQUE"
+        ),
+        userForgetPasswordToken(
+                "User",
+                UserRepositoryNeo4j.props.forgetPasswordToken.name(),
+                false,
+                false,
+                "CREATE INDEX user_forget_password_token IF NOT EXISTS FOR (n:User) ON (n.forgetPasswordToken)"
+        ),
+        userChangePasswordExpirationDate(
+                "User",
+                UserRepositoryNeo4j.props.changePasswordExpirationDate.name(),
+                false,
+                false,
+                "CREATE INDEX user_change_password_expiration_date IF NOT EXISTS FOR (n:User) ON (n.changePasswordExpirationDate)"
+        ),
+        usernameFulltext(
+                "User",
+                UserRepositoryNeo4j.props.username.name(),
+                false,
+                true,
+                "CALL db.index.fulltext.createNodeIndex('" + USERNAME_FULLTEXT_INDEX + "', ['User'], ['username'])"
+        );
+
+        private final String label;
+        private final String property;
+        private final Boolean unique;
+        private final Boolean fulltext;
+        private final String createStatement;
+
+        Requirement(String label, String property, Boolean unique, Boolean fulltext, String createStatement) {
+            this.label = label;
+            this.property = property;
+            this.unique = unique;
+            this.fulltext = fulltext;
+            this.createStatement = createStatement;
+        }
+
+        private Boolean isMetBy(Record index) {
+            if (fulltext) {
+                return index.get("name").asString().equals(USERNAME_FULLTEXT_INDEX);
+            }
+            return index.get("labelsOrTypes").asList().contains(label) &&
+                    index.get("properties").asList().equals(Collections.singletonList(property)) &&
+                    (!unique || index.get("uniqueness").asString().equals("UNIQUE"));
+        }
+    }
+
+    private final Driver driver;
+
+    private final String database;
+
+    private final Boolean failOnMissing;
+
+    @Inject
+    public UserSchemaNeo4j(
+            Driver driver,
+            @Named(FAIL_ON_MISSING_SCHEMA) Boolean failOnMissing
+    ) {
+        this(driver, null, failOnMissing);
+    }
+
+    public UserSchemaNeo4j(Driver driver, String database, Boolean failOnMissing) {
+        this.driver = driver;
+        this.database = database;
+        this.failOnMissing = failOnMissing;
+        ensure();
+    }
+
+    public void ensure() {
+        try (Session session = session()) {
+            List<Record> indexes = indexes(session);
+            for (Requirement requirement : Requirement.values()) {
+                if (!isPresent(requirement, indexes, false)) {
+                    create(session, requirement);
+                }
+            }
+            session.run(
+                    "CALL db.awaitIndexes($timeout)",
+                    parameters(
+                            "timeout", AWAIT_INDEXES_SECONDS
+                    )
+            ).consume();
+            List<Requirement> missing = new ArrayList<>();
+            indexes = indexes(session);
+            for (Requirement requirement : Requirement.values()) {
+                if (!isPresent(requirement, indexes, true)) {
+                    missing.add(requirement);
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+            String message = "Missing or not ONLINE user schema requirements " + missing;
+            if (failOnMissing) {
+                throw new IllegalStateException(message);
+            }
+            LOGGER.warning(message);
+        }
+    }
+
+    private Session session() {
+        return database == null ?
+                driver.session() :
+                driver.session(SessionConfig.forDatabase(database));
+    }
+
+    private void create(Session session, Requirement requirement) {
+        try {
+            session.run(requirement.createStatement).consume();
+        } catch (ClientException exception) {
+            LOGGER.warning(
+                    "Could not create " + requirement + ": " + exception.getMessage()
+            );
+        }
+    }
+
+    private Boolean isPresent(Requirement requirement, List<Record> indexes, Boolean mustBeOnline) {
+        for (Record index : indexes) {
+            if (requirement.isMetBy(index) && (!mustBeOnline || index.get("state").asString().equals("ONLINE"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Record> indexes(Session session) {
+        return session.run(
+                "CALL db.indexes() YIELD name, state, uniqueness, labelsOrTypes, properties " +
+                        "RETURN name, state, uniqueness, labelsOrTypes, properties"
+        ).list();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/*
+ * Usernames sorted by their lower cased form, a prefix is answered with a
+ * binary search. Usernames added after the last rebuild sit in a small
+ * concurrent set until the next rebuild folds them in.
+ */
+class UsernamePrefixIndex {
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private volatile String[] keys = new String[0];
+
+    private final NavigableSet<String> added = new ConcurrentSkipListSet<>();
+
+    void add(String username) {
+        String key = key(username);
+        if (Arrays.binarySearch(keys, key) < 0) {
+            added.add(key);
+        }
+    }
+
+    /*
+     * The usernames are expected in any order, they are sorted here.
+     */
+    void rebuild(List<String> usernames) {
+        String[] rebuilt = new String[usernames.size()];
+        for (int i = 0; i < rebuilt.length; i++) {
+            rebuilt[i] = key(usernames.get(i));
+        }
+        Arrays.sort(rebuilt);
+        keys = rebuilt;
+        added.removeIf(key -> Arrays.binarySearch(rebuilt, key) >= 0);
+    }
+
+    /*
+     * Merges the sorted keys with the sorted pending additions, usernames
+     * come in the alphabetical order of their lower cased form so a
+     * username comes before the longer ones it is a prefix of. Matches are
+     * not ranked by length, that would read all of them for short
+     * prefixes.
+     */
+    List<String> startingWith(String prefix, Integer limit, String excludedUsername) {
+        String lowerCasePrefix = prefix.toLowerCase(Locale.ROOT);
+        String[] keys = this.keys;
+        List<String> usernames = new ArrayList<>(Math.min(limit, 16));
+        int position = Arrays.binarySearch(keys, lowerCasePrefix);
+        int index = position < 0 ? -position - 1 : position;
+        Iterator<String> pending = added.subSet(
+                lowerCasePrefix,
+                true,
+                lowerCasePrefix + Character.MAX_VALUE,
+                false
+        ).iterator();
+        String nextPending = pending.hasNext() ? pending.next() : null;
+        while (usernames.size() < limit) {
+            String nextKey = index < keys.length && keys[index].startsWith(lowerCasePrefix) ?
+                    keys[index] :
+                    null;
+            if (nextKey == null && nextPending == null) {
+                break;
+            }
+            if (nextPending == null || (nextKey != null && nextKey.compareTo(nextPending) <= 0)) {
+                if (nextKey.equals(nextPending)) {
+                    nextPending = pending.hasNext() ? pending.next() : null;
+                }
+                addUsername(usernames, nextKey, excludedUsername);
+                index++;
+            } else {
+                addUsername(usernames, nextPending, excludedUsername);
+                nextPending = pending.hasNext() ? pending.next() : null;
+            }
+        }
+        return usernames;
+    }
+
+    Integer size() {
+        return keys.length + added.size();
+    }
+
+    private void addUsername(List<String> usernames, String key, String excludedUsername) {
+        String username = key.substring(key.indexOf(KEY_SEPARATOR) + 1);
+        if (!username.equals(excludedUsername)) {
+            usernames.add(username);
+        }
+    }
+
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT) + KEY_SEPARATOR + username;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class BloomFilterTest {
+
+    @Test
+    public void added_values_are_always_found() {
+        BloomFilter filter = new BloomFilter(1000L, 0.01);
+        for (int i = 0; i < 20000; i++) {
+            filter.add("user" + i);
+        }
+        for (int i = 0; i < 20000; i++) {
+            assertThat(filter.mightContain("user" + i), is(true));
+        }
+    }
+
+    @Test
+    public void false_positive_rate_is_about_the_one_asked() {
+        BloomFilter filter = new BloomFilter(10000L, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("user" + i);
+        }
+        Integer falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other" + i)) {
+                falsePositives++;
+            }
+        }
+        assertThat(falsePositives, lessThan(300));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.repository.user.UserRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CachedUserRepositoryTest {
+
+    private UserRepository userRepository;
+
+    private CachedUserRepository cachedUserRepository;
+
+    private User roger = User.withEmailAndUsername(
+            "roger@example.org",
+            "roger"
+    );
+
+    @Before
+    public void before() {
+        userRepository = mock(UserRepository.class);
+        cachedUserRepository = new CachedUserRepository(
+                userRepository,
+                2,
+                60L,
+                TimeUnit.SECONDS
+        );
+    }
+
+    @Test
+    public void counts_hits_misses_and_evictions() {
+        when(userRepository.findByUsername("roger")).thenReturn(roger);
+        when(userRepository.findByUsername("bob")).thenReturn(
+                User.withEmailAndUsername("bob@example.org", "bob")
+        );
+        when(userRepository.findByUsername("alice")).thenReturn(
+                User.withEmailAndUsername("alice@example.org", "alice")
+        );
+        cachedUserRepository.findByUsername("roger");
+        cachedUserRepository.findByUsername("roger");
+        cachedUserRepository.findByEmail("roger@example.org");
+        cachedUserRepository.findByUsername("bob");
+        cachedUserRepository.findByUsername("alice");
+        assertThat(cachedUserRepository.getHits(), is(2L));
+        assertThat(cachedUserRepository.getMisses(), is(3L));
+        assertThat(cachedUserRepository.getEvictions(), is(1L));
+        assertThat(cachedUserRepository.size(), is(2));
+    }
+
+    @Test
+    public void load_is_cached_when_another_user_is_written_meanwhile() {
+        when(userRepository.findByUsername("roger")).thenAnswer(invocation -> {
+            cachedUserRepository.invalidate("bob");
+            return roger;
+        });
+        cachedUserRepository.findByUsername("roger");
+        cachedUserRepository.findByUsername("roger");
+        assertThat(cachedUserRepository.getHits(), is(1L));
+    }
+
+    @Test
+    public void load_is_not_cached_when_its_user_is_written_meanwhile() {
+        when(userRepository.findByUsername("roger")).thenAnswer(invocation -> {
+            cachedUserRepository.invalidate("roger");
+            return roger;
+        });
+        cachedUserRepository.findByUsername("roger");
+        cachedUserRepository.findByUsername("roger");
+        assertThat(cachedUserRepository.getHits(), is(0L));
+        assertThat(cachedUserRepository.size(), is(0));
+    }
+
+    @Test
+    public void load_by_email_is_not_cached_when_its_user_is_written_meanwhile() {
+        when(userRepository.findByEmail("roger@example.org")).thenAnswer(invocation -> {
+            cachedUserRepository.invalidate("roger");
+            return roger;
+        });
+        cachedUserRepository.findByEmail("roger@example.org");
+        assertThat(cachedUserRepository.size(), is(0));
+    }
+
+    @Test
+    public void copies_are_returned() {
+        when(userRepository.findByUsername("roger")).thenReturn(roger);
+        User first = cachedUserRepository.findByUsername("roger");
+        User second = cachedUserRepository.findByUsername("roger");
+        assertThat(first == second, is(false));
+        assertThat(second.email(), is(roger.email()));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import guru.bubl.module.model.User;
+import org.neo4j.configuration.connectors.BoltConnector;
+import org.neo4j.configuration.helpers.SocketAddress;
+import org.neo4j.dbms.api.DatabaseManagementService;
+import org.neo4j.dbms.api.DatabaseManagementServiceBuilder;
+import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.GraphDatabase;
+import org.neo4j.driver.Session;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.neo4j.driver.Values.parameters;
+
+/*
+ * Embedded database reached through bolt, wired with
+ * Neo4jUserRepositoryModule and seeded with userN users. Used by the tests
+ * and by the benchmarks.
+ */
+class EmbeddedNeo4j implements AutoCloseable {
+
+    private static final Integer SEED_BATCH_SIZE = 10000;
+
+    private final Path directory;
+
+    private final DatabaseManagementService managementService;
+
+    private final Driver driver;
+
+    private final Injector injector;
+
+    EmbeddedNeo4j() {
+        this(new Neo4jUserRepositoryModule());
+    }
+
+    EmbeddedNeo4j(Neo4jUserRepositoryModule module) {
+        Integer port = freePort();
+        try {
+            directory = Files.createTempDirectory("user-repository-neo4j");
+            managementService = new DatabaseManagementServiceBuilder(
+                    directory
+            ).setConfig(
+                    BoltConnector.enabled, true
+            ).setConfig(
+                    BoltConnector.listen_address, new SocketAddress("localhost", port)
+            ).build();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        driver = GraphDatabase.driver(
+                "bolt://localhost:" + port,
+                AuthTokens.none()
+        );
+        injector = Guice.createInjector(
+                module,
+                binder -> binder.bind(Driver.class).toInstance(driver)
+        );
+    }
+
+    static User user(Integer index) {
+        return User.withEmailAndUsername(
+                "user" + index + "@example.org",
+                "user" + index
+        );
+    }
+
+    Injector injector() {
+        return injector;
+    }
+
+    Driver driver() {
+        return driver;
+    }
+
+    UserPartition partition() {
+        return new UserPartition(driver);
+    }
+
+    UserRepositoryNeo4j userRepository() {
+        return injector.getInstance(UserRepositoryNeo4j.class);
+    }
+
+    FriendManagerNeo4j friendManager(User user) {
+        FriendManagerNeo4j friendManager = new FriendManagerNeo4j(user);
+        injector.injectMembers(friendManager);
+        return friendManager;
+    }
+
+    void seedUsers(Integer numberOfUsers) {
+        UserRepositoryNeo4j userRepository = userRepository();
+        List<User> users = new ArrayList<>(SEED_BATCH_SIZE);
+        for (int i = 0; i < numberOfUsers; i++) {
+            users.add(user(i));
+            if (users.size() == SEED_BATCH_SIZE) {
+                userRepository.createUsers(users, SEED_BATCH_SIZE);
+                users.clear();
+            }
+        }
+        userRepository.createUsers(users, SEED_BATCH_SIZE);
+    }
+
+    /*
+     * Random friend requests between the seeded users, half of them
+     * confirmed.
+     */
+    void seedFriendships(Integer numberOfUsers, Integer numberOfFriendships) {
+        Random random = new Random(42);
+        List<Map<String, Object>> friendships = new ArrayList<>(SEED_BATCH_SIZE);
+        for (int i = 0; i < numberOfFriendships; i++) {
+            Map<String, Object> friendship = new HashMap<>();
+            friendship.put("from", user(random.nextInt(numberOfUsers)).id());
+            friendship.put("to", user(random.nextInt(numberOfUsers)).id());
+            friendship.put("status", i % 2 == 0 ? "confirmed" : "waiting");
+            friendships.add(friendship);
+            if (friendships.size() == SEED_BATCH_SIZE || i == numberOfFriendships - 1) {
+                try (Session session = driver.session()) {
+                    session.run(
+                            "UNWIND $friendships as friendship " +
+                                    "MATCH(user:Resource{uri:friendship.from}), (friend:Resource{uri:friendship.to}) " +
+                                    "WHERE user <> friend " +
+                                    "MERGE (user)-[relation:friend]->(friend) " +
+                                    "SET relation.status = friendship.status",
+                            parameters(
+                                    "friendships", friendships
+                            )
+                    ).consume();
+                }
+                friendships.clear();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        driver.close();
+        managementService.shutdown();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private static Integer freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.repository.user.UserRepository;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.neo4j.driver.Values.parameters;
+
+public class ExistenceFilteredUserRepositoryTest {
+
+    private static EmbeddedNeo4j neo4j;
+
+    private static UserRepository userRepository;
+
+    @BeforeClass
+    public static void beforeClass() {
+        neo4j = new EmbeddedNeo4j(
+                new Neo4jUserRepositoryModule().filterUserExistence(0.01)
+        );
+        neo4j.seedUsers(10);
+        userRepository = neo4j.injector().getInstance(UserRepository.class);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        neo4j.injector().getInstance(UserRepositoryLifecycle.class).close();
+        neo4j.close();
+    }
+
+    @Test
+    public void user_repository_is_filtered() {
+        assertThat(userRepository instanceof ExistenceFilteredUserRepository, is(true));
+    }
+
+    @Test
+    public void users_created_one_by_one_exist() {
+        User user = user("single");
+        userRepository.createUser(user);
+        assertThat(userRepository.usernameExists(user.username()), is(true));
+        assertThat(userRepository.emailExists(user.email()), is(true));
+    }
+
+    @Test
+    public void users_created_in_batches_exist() {
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            users.add(user("batched" + i));
+        }
+        neo4j.userRepository().createUsers(users, 20);
+        for (User user : users) {
+            assertThat(userRepository.usernameExists(user.username()), is(true));
+            assertThat(userRepository.emailExists(user.email()), is(true));
+        }
+    }
+
+    @Test
+    public void users_written_elsewhere_exist_after_a_rebuild() {
+        User user = user("elsewhere");
+        try (Session session = neo4j.driver().session()) {
+            session.run(
+                    "CREATE(:Resource:User{uri:$uri, email:$email})",
+                    parameters(
+                            "uri", user.id(),
+                            "email", user.email()
+                    )
+            ).consume();
+        }
+        neo4j.injector().getInstance(UserRepositoryLifecycle.class).rebuildIndexes();
+        assertThat(userRepository.usernameExists(user.username()), is(true));
+        assertThat(userRepository.emailExists(user.email()), is(true));
+    }
+
+    @Test
+    public void missing_users_do_not_exist() {
+        assertThat(userRepository.usernameExists("nobody"), is(false));
+        assertThat(userRepository.emailExists("nobody@example.org"), is(false));
+    }
+
+    private static User user(String username) {
+        return User.withEmailAndUsername(
+                username + "@example.org",
+                username
+        );
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendStatus;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+public class FriendManagerNeo4jTest {
+
+    private static EmbeddedNeo4j neo4j;
+
+    private static Integer numberOfUsers = 0;
+
+    @BeforeClass
+    public static void beforeClass() {
+        neo4j = new EmbeddedNeo4j();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        neo4j.close();
+    }
+
+    @Test
+    public void add_moves_through_the_statuses() {
+        User user = newUser();
+        User friend = newUser();
+        FriendAddition request = neo4j.friendManager(user).addAndGetStatus(friend);
+        assertThat(request.getStatus(), is(FriendStatus.waiting));
+        assertThat(request.getConfirmToken(), is(notNullValue()));
+        FriendAddition repeated = neo4j.friendManager(user).addAndGetStatus(friend);
+        assertThat(repeated.getStatus(), is(FriendStatus.waiting));
+        assertThat(repeated.getConfirmToken(), is(nullValue()));
+        assertThat(neo4j.friendManager(friend).getStatusWithUser(user), is(FriendStatus.waitingForYourAnswer));
+        FriendAddition answer = neo4j.friendManager(friend).addAndGetStatus(user);
+        assertThat(answer.getStatus(), is(FriendStatus.confirmed));
+        assertThat(neo4j.friendManager(user).getStatusWithUser(friend), is(FriendStatus.confirmed));
+        assertThat(neo4j.friendManager(friend).getStatusWithUser(user), is(FriendStatus.confirmed));
+        assertThat(neo4j.friendManager(user).addAndGetStatus(friend).getStatus(), is(FriendStatus.confirmed));
+        assertThat(neo4j.friendManager(user).list().size(), is(1));
+    }
+
+    @Test
+    public void confirm_with_token_needs_the_token_of_the_request() {
+        User user = newUser();
+        User friend = newUser();
+        String confirmToken = neo4j.friendManager(user).add(friend);
+        assertThat(neo4j.friendManager(friend).confirmWithToken(user, "wrong"), is(false));
+        assertThat(neo4j.friendManager(friend).confirmWithToken(user, confirmToken), is(true));
+        assertThat(neo4j.friendManager(user).getStatusWithUser(friend), is(FriendStatus.confirmed));
+    }
+
+    @Test
+    public void adding_a_missing_user_names_it() {
+        User user = newUser();
+        User missing = User.withEmailAndUsername("missing@example.org", "missing");
+        try {
+            neo4j.friendManager(user).add(missing);
+            fail();
+        } catch (NonExistingUserException expected) {
+            assertThat(expected.getMessage().contains("missing"), is(true));
+        }
+        try {
+            neo4j.friendManager(missing).add(user);
+            fail();
+        } catch (NonExistingUserException expected) {
+            assertThat(expected.getMessage().contains("missing"), is(true));
+        }
+    }
+
+    @Test
+    public void users_adding_each_other_at_once_end_up_confirmed() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            User user = newUser();
+            User friend = newUser();
+            List<User[]> pairs = Collections.synchronizedList(new ArrayList<>(Arrays.asList(
+                    new User[]{user, friend},
+                    new User[]{friend, user}
+            )));
+            List<FriendStatus> statuses = UserRepositoryNeo4jTest.concurrently(2, () -> {
+                User[] pair = pairs.remove(0);
+                return neo4j.friendManager(pair[0]).addAndGetStatus(pair[1]).getStatus();
+            });
+            assertThat(statuses.contains(FriendStatus.waiting), is(true));
+            assertThat(statuses.contains(FriendStatus.confirmed), is(true));
+            assertThat(neo4j.friendManager(user).getStatusWithUser(friend), is(FriendStatus.confirmed));
+            assertThat(neo4j.friendManager(friend).getStatusWithUser(user), is(FriendStatus.confirmed));
+            assertThat(neo4j.friendManager(user).list().size(), is(1));
+        }
+    }
+
+    private static synchronized User newUser() {
+        numberOfUsers++;
+        User user = User.withEmailAndUsername(
+                "friend_manager" + numberOfUsers + "@example.org",
+                "friend_manager" + numberOfUsers
+        );
+        neo4j.userRepository().createUser(user);
+        return user;
+    }
+}
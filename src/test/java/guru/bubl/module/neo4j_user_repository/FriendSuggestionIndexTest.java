@@ -0,0 +1,132 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class FriendSuggestionIndexTest {
+
+    private static final Integer MAX_CANDIDATES_PER_USER = 2;
+
+    private static EmbeddedNeo4j neo4j;
+
+    private static Integer numberOfUsers = 0;
+
+    @BeforeClass
+    public static void beforeClass() {
+        neo4j = new EmbeddedNeo4j(
+                new Neo4jUserRepositoryModule().suggestFriends(MAX_CANDIDATES_PER_USER)
+        );
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        neo4j.close();
+    }
+
+    @Test
+    public void confirmation_counts_the_friends_of_the_other_user() {
+        FriendSuggestionIndex index = new FriendSuggestionIndex(10);
+        index.confirmed("b", Arrays.asList("c"), "c", Arrays.asList("b", "d"));
+        index.confirmed("a", Arrays.asList("c"), "c", Arrays.asList("a", "b", "d"));
+        assertThat(counts(index.candidates("a")), is("b=1,d=1"));
+        assertThat(counts(index.candidates("b")), is("a=1,d=1"));
+        assertThat(counts(index.candidates("d")), is("a=1,b=1"));
+        index.confirmed("a", Arrays.asList("c", "d"), "d", Arrays.asList("a", "c"));
+        assertThat(counts(index.candidates("a")), is("b=1"));
+    }
+
+    @Test
+    public void candidates_are_bounded() {
+        FriendSuggestionIndex index = new FriendSuggestionIndex(2);
+        index.confirmed("b", Arrays.asList("c"), "c", Arrays.asList("b"));
+        index.confirmed("b", Arrays.asList("c", "d"), "d", Arrays.asList("b"));
+        index.confirmed("b", Arrays.asList("c", "d", "e"), "e", Arrays.asList("b"));
+        index.confirmed("a", Arrays.asList("b"), "b", Arrays.asList("a", "c", "d", "e"));
+        assertThat(index.candidates("a").size(), is(2));
+        for (String candidate : Arrays.asList("c", "d", "e")) {
+            assertThat(index.candidates(candidate).size() <= 2, is(true));
+        }
+    }
+
+    @Test
+    public void disabled_index_has_no_candidates() {
+        FriendSuggestionIndex index = FriendSuggestionIndex.disabled();
+        index.confirmed("a", Arrays.asList("b"), "b", Arrays.asList("a", "c"));
+        assertThat(index.candidates("a").isEmpty(), is(true));
+        assertThat(index.isEnabled(), is(false));
+    }
+
+    @Test
+    public void suggests_friends_of_friends_not_asked_yet() {
+        User user = newUser();
+        User friend = newUser();
+        User otherFriend = newUser();
+        User mutual = newUser();
+        User friendOfFriend = newUser();
+        befriend(friend, mutual);
+        befriend(otherFriend, mutual);
+        befriend(friend, friendOfFriend);
+        befriend(user, friend);
+        befriend(user, otherFriend);
+        assertThat(suggestions(user), is(mutual.username() + "=2," + friendOfFriend.username() + "=1"));
+        neo4j.friendManager(user).add(mutual);
+        assertThat(suggestions(user), is(friendOfFriend.username() + "=1"));
+        neo4j.injector().getInstance(FriendSuggestionIndex.class).rebuild();
+        assertThat(suggestions(user), is(friendOfFriend.username() + "=1"));
+        assertThat(neo4j.friendManager(user).suggestions(0).isEmpty(), is(true));
+    }
+
+    @Test
+    public void rebuilt_candidates_are_bounded() {
+        User user = newUser();
+        User friend = newUser();
+        befriend(user, friend);
+        for (int i = 0; i < MAX_CANDIDATES_PER_USER + 3; i++) {
+            befriend(friend, newUser());
+        }
+        assertThat(neo4j.friendManager(user).suggestions(10).size(), is(MAX_CANDIDATES_PER_USER));
+        neo4j.injector().getInstance(FriendSuggestionIndex.class).rebuild();
+        assertThat(neo4j.friendManager(user).suggestions(10).size(), is(MAX_CANDIDATES_PER_USER));
+    }
+
+    private static String counts(List<Map.Entry<String, Integer>> candidates) {
+        return candidates.stream().map(
+                candidate -> candidate.getKey() + "=" + candidate.getValue()
+        ).collect(Collectors.joining(","));
+    }
+
+    private static String suggestions(User user) {
+        return neo4j.friendManager(user).suggestions(10).stream().map(
+                suggestion -> suggestion.getUsername() + "=" + suggestion.getMutualFriends()
+        ).collect(Collectors.joining(","));
+    }
+
+    private static void befriend(User user, User friend) {
+        neo4j.friendManager(user).add(friend);
+        neo4j.friendManager(friend).add(user);
+    }
+
+    private static synchronized User newUser() {
+        numberOfUsers++;
+        User user = User.withEmailAndUsername(
+                "suggested" + numberOfUsers + "@example.org",
+                "suggested" + numberOfUsers
+        );
+        neo4j.userRepository().createUser(user);
+        return user;
+    }
+}
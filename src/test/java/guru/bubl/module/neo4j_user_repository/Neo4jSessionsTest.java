@@ -0,0 +1,261 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendStatus;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Bookmark;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.TransactionWork;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.summary.ResultSummary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class Neo4jSessionsTest {
+
+    private final List<SessionConfig> sessionConfigs = new ArrayList<>();
+
+    private Bookmark writeBookmark;
+
+    private Neo4jSessions sessions;
+
+    private UserRepositoryNeo4j userRepository;
+
+    private User user = User.withEmailAndUsername(
+            "roger@example.org",
+            "roger"
+    );
+
+    @Before
+    public void before() {
+        writeBookmark = mock(Bookmark.class);
+        when(writeBookmark.isEmpty()).thenReturn(false);
+        Driver driver = mock(Driver.class);
+        when(driver.session(any(SessionConfig.class))).thenAnswer(invocation -> {
+            sessionConfigs.add((SessionConfig) invocation.getArguments()[0]);
+            return emptySession();
+        });
+        sessions = new Neo4jSessions(driver);
+        userRepository = new UserRepositoryNeo4j();
+        userRepository.driver = driver;
+        userRepository.sessions = sessions;
+        userRepository.consultNotificationDateBuffer = new ConsultNotificationDateBuffer(sessions, null);
+        userRepository.inFlightLookups = InFlightLookups.disabled();
+    }
+
+    @Test
+    public void lookups_use_read_sessions() {
+        findByUsername("roger");
+        userRepository.searchUsers("rog", user, 0, 10);
+        FriendManagerNeo4j friendManager = friendManager();
+        friendManager.list();
+        friendManager.getStatusWithUser(
+                User.withEmailAndUsername("bob@example.org", "bob")
+        );
+        assertThat(sessionConfigs.size(), is(4));
+        for (SessionConfig sessionConfig : sessionConfigs) {
+            assertThat(sessionConfig.defaultAccessMode(), is(AccessMode.READ));
+        }
+    }
+
+    @Test
+    public void writes_use_write_sessions() {
+        userRepository.changePassword(user);
+        userRepository.updatePreferredLocales(user);
+        friendManager().addAndGetStatus(
+                User.withEmailAndUsername("bob@example.org", "bob")
+        );
+        assertThat(sessionConfigs.size(), is(3));
+        for (SessionConfig sessionConfig : sessionConfigs) {
+            assertThat(sessionConfig.defaultAccessMode(), is(AccessMode.WRITE));
+        }
+    }
+
+    @Test
+    public void read_after_write_in_a_scope_gets_the_bookmark_of_the_write() {
+        try (Neo4jSessions.BookmarkScope scope = sessions.scope()) {
+            userRepository.changePassword(user);
+            findByUsername("roger");
+            assertThat(scope.bookmark(), is(writeBookmark));
+        }
+        assertThat(bookmarks(sessionConfigs.get(0)).isEmpty(), is(true));
+        assertThat(bookmarks(sessionConfigs.get(1)), is(listOf(writeBookmark)));
+    }
+
+    @Test
+    public void read_after_write_gets_the_bookmark_of_the_write() {
+        assertThat(sessions.lastBookmark(), is(nullValue()));
+        userRepository.changePassword(user);
+        findByUsername("roger");
+        assertThat(bookmarks(sessionConfigs.get(0)).isEmpty(), is(true));
+        assertThat(bookmarks(sessionConfigs.get(1)), is(listOf(writeBookmark)));
+    }
+
+    @Test
+    public void read_on_another_thread_gets_the_bookmark_of_the_write() throws InterruptedException {
+        userRepository.changePassword(user);
+        Thread reader = new Thread(() -> findByUsername("roger"));
+        reader.start();
+        reader.join();
+        assertThat(bookmarks(sessionConfigs.get(1)), is(listOf(writeBookmark)));
+    }
+
+    @Test
+    public void write_supersedes_the_writes_closed_before_it_opened() {
+        Bookmark first = bookmark("first");
+        Bookmark second = bookmark("second");
+        Bookmark overlapping = bookmark("overlapping");
+        Long openedBeforeAnyWrite = sessions.writesClosed();
+        sessions.rememberBookmark(first, openedBeforeAnyWrite);
+        Long openedAfterFirst = sessions.writesClosed();
+        sessions.rememberBookmark(second, openedAfterFirst);
+        assertThat(sessions.lastBookmark(), is(second));
+        sessions.rememberBookmark(overlapping, openedAfterFirst);
+        assertThat(
+                sessions.lastBookmark().values(),
+                is((Set<String>) new HashSet<>(Arrays.asList("second", "overlapping")))
+        );
+    }
+
+    @Test
+    public void bookmark_of_a_nested_scope_goes_to_the_outer_scope() {
+        try (Neo4jSessions.BookmarkScope outer = sessions.scope()) {
+            try (Neo4jSessions.BookmarkScope inner = sessions.scope()) {
+                userRepository.changePassword(user);
+            }
+            assertThat(outer.bookmark(), is(writeBookmark));
+        }
+    }
+
+    @Test
+    public void scope_starts_from_the_bookmark_of_the_latest_writes() {
+        userRepository.changePassword(user);
+        try (Neo4jSessions.BookmarkScope scope = sessions.scope()) {
+            assertThat(scope.bookmark(), is(writeBookmark));
+        }
+    }
+
+    @Test
+    public void every_run_overload_is_observed() {
+        RepositoryMetricsSink metricsSink = mock(RepositoryMetricsSink.class);
+        sessions.setMetricsSink(metricsSink);
+        try (Session session = sessions.write()) {
+            session.run("RETURN 1");
+            session.run(new Query("RETURN $one"));
+            session.writeTransaction(tx -> tx.run("RETURN 1"));
+        }
+        verify(metricsSink, times(3)).recordServerTimes(
+                eq("unknown"),
+                anyLong(),
+                anyLong()
+        );
+    }
+
+    private Session emptySession() {
+        Session session = mock(Session.class);
+        Transaction transaction = mock(Transaction.class);
+        Result result = emptyResult();
+        when(session.run(anyString())).thenReturn(result);
+        when(session.run(anyString(), any(Value.class))).thenReturn(result);
+        when(session.run(anyString(), anyMapOf(String.class, Object.class))).thenReturn(result);
+        when(session.run(any(Query.class))).thenReturn(result);
+        when(transaction.run(anyString())).thenReturn(result);
+        when(transaction.run(anyString(), any(Value.class))).thenReturn(previousStatusResult());
+        when(session.readTransaction(any(TransactionWork.class))).thenAnswer(
+                invocation -> ((TransactionWork<?>) invocation.getArguments()[0]).execute(transaction)
+        );
+        when(session.writeTransaction(any(TransactionWork.class))).thenAnswer(
+                invocation -> ((TransactionWork<?>) invocation.getArguments()[0]).execute(transaction)
+        );
+        when(session.lastBookmark()).thenReturn(writeBookmark);
+        return session;
+    }
+
+    private Result emptyResult() {
+        Result result = mock(Result.class);
+        when(result.hasNext()).thenReturn(false);
+        when(result.consume()).thenReturn(mock(ResultSummary.class));
+        return result;
+    }
+
+    private Result previousStatusResult() {
+        Value previousStatus = mock(Value.class);
+        when(previousStatus.asString()).thenReturn(FriendStatus.none.name());
+        Record record = mock(Record.class);
+        when(record.get("previousStatus")).thenReturn(previousStatus);
+        Result result = emptyResult();
+        when(result.hasNext()).thenReturn(true);
+        when(result.single()).thenReturn(record);
+        return result;
+    }
+
+    private void findByUsername(String username) {
+        try {
+            userRepository.findByUsername(username);
+        } catch (NonExistingUserException ignored) {
+            // the stubbed driver has no users
+        }
+    }
+
+    private FriendManagerNeo4j friendManager() {
+        FriendManagerNeo4j friendManager = new FriendManagerNeo4j(user);
+        friendManager.driver = userRepository.driver;
+        friendManager.sessions = sessions;
+        friendManager.friendListCache = FriendListCache.disabled();
+        friendManager.inFlightLookups = InFlightLookups.disabled();
+        friendManager.friendSuggestionIndex = FriendSuggestionIndex.disabled();
+        return friendManager;
+    }
+
+    private static List<Bookmark> bookmarks(SessionConfig sessionConfig) {
+        List<Bookmark> bookmarks = new ArrayList<>();
+        if (sessionConfig.bookmarks() != null) {
+            sessionConfig.bookmarks().forEach(bookmarks::add);
+        }
+        return bookmarks;
+    }
+
+    private static Bookmark bookmark(String value) {
+        Bookmark bookmark = mock(Bookmark.class);
+        when(bookmark.isEmpty()).thenReturn(false);
+        when(bookmark.values()).thenReturn(Collections.singleton(value));
+        return bookmark;
+    }
+
+    private static List<Bookmark> listOf(Bookmark bookmark) {
+        List<Bookmark> bookmarks = new ArrayList<>();
+        bookmarks.add(bookmark);
+        return bookmarks;
+    }
+}
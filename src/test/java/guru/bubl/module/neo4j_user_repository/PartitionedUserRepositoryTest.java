@@ -0,0 +1,226 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import com.google.inject.CreationException;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.ProvisionException;
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendManager;
+import guru.bubl.module.model.friend.FriendManagerFactory;
+import guru.bubl.module.model.friend.FriendStatus;
+import guru.bubl.module.repository.user.ExistingUserException;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import guru.bubl.module.repository.user.UserRepository;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Driver;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+public class PartitionedUserRepositoryTest {
+
+    private static final Integer NUMBER_OF_PARTITIONS = 3;
+
+    private static List<EmbeddedNeo4j> databases;
+
+    private static Injector injector;
+
+    private static PartitionedUserRepository userRepository;
+
+    @BeforeClass
+    public static void beforeClass() {
+        databases = new ArrayList<>();
+        UserPartition[] userPartitions = new UserPartition[NUMBER_OF_PARTITIONS];
+        for (int i = 0; i < NUMBER_OF_PARTITIONS; i++) {
+            EmbeddedNeo4j database = new EmbeddedNeo4j();
+            databases.add(database);
+            userPartitions[i] = database.partition();
+        }
+        injector = Guice.createInjector(
+                new Neo4jUserRepositoryModule().partitionUsers(userPartitions),
+                binder -> binder.bind(Driver.class).toInstance(databases.get(0).driver())
+        );
+        userRepository = injector.getInstance(PartitionedUserRepository.class);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        userRepository.close();
+        for (EmbeddedNeo4j database : databases) {
+            database.close();
+        }
+    }
+
+    @Test
+    public void user_is_bound_to_the_partitioned_repository() {
+        assertThat(
+                injector.getInstance(UserRepository.class) == userRepository,
+                is(true)
+        );
+    }
+
+    @Test
+    public void user_is_stored_in_the_partition_of_its_username() {
+        for (int i = 0; i < 9; i++) {
+            User user = user("routed" + i);
+            userRepository.createUser(user);
+            Integer partition = PartitionedUserRepository.partitionOf(user.username(), NUMBER_OF_PARTITIONS);
+            for (int j = 0; j < NUMBER_OF_PARTITIONS; j++) {
+                assertThat(
+                        databases.get(j).userRepository().usernameExists(user.username()),
+                        is(j == partition)
+                );
+            }
+            assertThat(
+                    userRepository.findByUsername(user.username()).email(),
+                    is(user.email())
+            );
+        }
+    }
+
+    @Test
+    public void user_is_found_by_email_through_the_directory() {
+        User user = user(usernameInPartition("byemail", 2));
+        userRepository.createUser(user);
+        assertThat(userRepository.emailExists(user.email()), is(true));
+        assertThat(userRepository.findByEmail(user.email()).username(), is(user.username()));
+        assertThat(userRepository.emailExists("nobody@example.org"), is(false));
+    }
+
+    @Test
+    public void user_with_an_email_taken_in_another_partition_is_not_created() {
+        String username = usernameInPartition("duplicate", 0);
+        String otherUsername = usernameInPartition("duplicate", 1);
+        userRepository.createUser(
+                User.withEmailAndUsername("duplicate@example.org", username)
+        );
+        try {
+            userRepository.createUser(
+                    User.withEmailAndUsername("duplicate@example.org", otherUsername)
+            );
+            fail();
+        } catch (ExistingUserException expected) {
+            // the email belongs to the first user
+        }
+        assertThat(userRepository.usernameExists(otherUsername), is(false));
+        assertThat(databases.get(1).userRepository().usernameExists(otherUsername), is(false));
+        assertThat(userRepository.findByEmail("duplicate@example.org").username(), is(username));
+    }
+
+    @Test
+    public void search_gathers_pages_from_all_partitions() {
+        Set<String> usernames = new HashSet<>();
+        for (int i = 0; i < 9; i++) {
+            User user = user("gathered" + i);
+            userRepository.createUser(user);
+            usernames.add(user.username());
+        }
+        List<User> firstPage = userRepository.searchUsers("gathered", null, 0, 4);
+        List<User> secondPage = userRepository.searchUsers("gathered", null, 4, 10);
+        assertThat(firstPage.size(), is(4));
+        assertThat(secondPage.size(), is(5));
+        Set<String> found = new HashSet<>();
+        for (User user : firstPage) {
+            found.add(user.username());
+        }
+        for (User user : secondPage) {
+            found.add(user.username());
+        }
+        assertThat(found, is(usernames));
+        assertThat(userRepository.searchUsers("gathered", null, 9, 10).isEmpty(), is(true));
+    }
+
+    @Test
+    public void friendship_across_partitions() {
+        User user = user(usernameInPartition("friendly", 0));
+        User otherUser = user(usernameInPartition("friendly", 2));
+        userRepository.createUser(user);
+        userRepository.createUser(otherUser);
+        FriendManagerFactory friendManagerFactory = injector.getInstance(FriendManagerFactory.class);
+        FriendManager friendManager = friendManagerFactory.forUser(user);
+        FriendManager otherFriendManager = friendManagerFactory.forUser(otherUser);
+        friendManager.add(otherUser);
+        assertThat(friendManager.getStatusWithUser(otherUser), is(FriendStatus.waiting));
+        assertThat(otherFriendManager.getStatusWithUser(user), is(FriendStatus.waitingForYourAnswer));
+        otherFriendManager.confirm(user);
+        assertThat(friendManager.getStatusWithUser(otherUser), is(FriendStatus.confirmed));
+        assertThat(otherFriendManager.getStatusWithUser(user), is(FriendStatus.confirmed));
+        assertThat(
+                friendManager.list().get(URI.create(otherUser.id())).getStatus(),
+                is(FriendStatus.confirmed)
+        );
+        assertThat(
+                otherFriendManager.list().get(URI.create(user.id())).getStatus(),
+                is(FriendStatus.confirmed)
+        );
+        assertThat(friendManager.list().size(), is(1));
+        assertThat(otherFriendManager.list().size(), is(1));
+    }
+
+    @Test
+    public void adding_a_missing_user_leaves_its_username_free() {
+        User user = user(usernameInPartition("lonely", 0));
+        userRepository.createUser(user);
+        for (int partition = 0; partition < NUMBER_OF_PARTITIONS; partition++) {
+            User missingUser = user(usernameInPartition("missing", partition));
+            try {
+                injector.getInstance(FriendManagerFactory.class).forUser(user).add(missingUser);
+                fail();
+            } catch (NonExistingUserException expected) {
+                // the friend was never created
+            }
+            userRepository.createUser(missingUser);
+            assertThat(userRepository.usernameExists(missingUser.username()), is(true));
+        }
+    }
+
+    @Test
+    public void features_of_the_bound_driver_are_refused() {
+        try {
+            Guice.createInjector(
+                    new Neo4jUserRepositoryModule()
+                            .partitionUsers(databases.get(0).partition())
+                            .logSlowQueries(100L, 0.0),
+                    binder -> binder.bind(Driver.class).toInstance(databases.get(0).driver())
+            );
+            fail();
+        } catch (CreationException expected) {
+            // the slow query log would only see the bound Driver
+        }
+        try {
+            injector.getInstance(UserRepositoryNeo4jAsync.class);
+            fail();
+        } catch (ProvisionException expected) {
+            // async lookups would only see the bound Driver
+        }
+    }
+
+    private static User user(String username) {
+        return User.withEmailAndUsername(
+                username + "@example.org",
+                username
+        );
+    }
+
+    private static String usernameInPartition(String prefix, Integer partition) {
+        for (int i = 0; ; i++) {
+            String username = prefix + i;
+            if (PartitionedUserRepository.partitionOf(username, NUMBER_OF_PARTITIONS).equals(partition)) {
+                return username;
+            }
+        }
+    }
+}
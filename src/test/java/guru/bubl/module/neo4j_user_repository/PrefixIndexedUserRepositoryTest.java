@@ -0,0 +1,79 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.repository.user.UserRepository;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PrefixIndexedUserRepositoryTest {
+
+    private static EmbeddedNeo4j neo4j;
+
+    private static PrefixIndexedUserRepository userRepository;
+
+    @BeforeClass
+    public static void beforeClass() {
+        neo4j = new EmbeddedNeo4j(
+                new Neo4jUserRepositoryModule().indexUsernamePrefixes(3600L)
+        );
+        neo4j.seedUsers(120);
+        userRepository = neo4j.injector().getInstance(PrefixIndexedUserRepository.class);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        neo4j.injector().getInstance(UserRepositoryLifecycle.class).close();
+        neo4j.close();
+    }
+
+    @Test
+    public void prefix_index_is_the_bound_user_repository() {
+        assertThat(
+                neo4j.injector().getInstance(UserRepository.class) == userRepository,
+                is(true)
+        );
+    }
+
+    @Test
+    public void search_is_limited() {
+        assertThat(
+                userRepository.searchUsers("user", null).size(),
+                is(UserRepositoryNeo4j.DEFAULT_SEARCH_LIMIT)
+        );
+        assertThat(userRepository.searchUsers("user", null, 5).size(), is(5));
+    }
+
+    @Test
+    public void usernames_starting_with_the_term_come_in_lexicographic_order() {
+        List<String> usernames = new ArrayList<>();
+        for (User user : userRepository.searchUsers("user1", null, 4)) {
+            usernames.add(user.username());
+        }
+        List<String> expected = new ArrayList<>();
+        expected.add("user1");
+        expected.add("user10");
+        expected.add("user100");
+        expected.add("user101");
+        assertThat(usernames, is(expected));
+    }
+
+    @Test
+    public void users_created_in_batches_are_indexed() {
+        List<User> users = new ArrayList<>();
+        users.add(User.withEmailAndUsername("batched1@example.org", "batched1"));
+        users.add(User.withEmailAndUsername("batched2@example.org", "batched2"));
+        neo4j.userRepository().createUsers(users, 10);
+        assertThat(userRepository.searchUsers("batched", null).size(), is(2));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import guru.bubl.module.model.User;
+import guru.bubl.module.model.friend.FriendManager;
+import guru.bubl.module.model.friend.FriendManagerFactory;
+import guru.bubl.module.repository.user.NonExistingUserException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.neo4j.driver.Driver;
+import org.neo4j.driver.Session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+public class RepositoryMetricsInterceptorTest {
+
+    private static InMemoryRepositoryMetrics metrics;
+
+    private static EmbeddedNeo4j neo4j;
+
+    @BeforeClass
+    public static void beforeClass() {
+        metrics = new InMemoryRepositoryMetrics();
+        neo4j = new EmbeddedNeo4j(
+                new Neo4jUserRepositoryModule().recordMetrics(metrics)
+        );
+        neo4j.seedUsers(10);
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        neo4j.close();
+    }
+
+    @Test
+    public void counts_calls_result_sizes_and_server_times() {
+        Snapshot before = snapshot("UserRepositoryNeo4j.findByUsername");
+        userRepository().findByUsername("user1");
+        userRepository().findByUsername("user2");
+        Snapshot after = snapshot("UserRepositoryNeo4j.findByUsername");
+        assertThat(after.calls - before.calls, is(2L));
+        assertThat(after.errors - before.errors, is(0L));
+        assertThat(after.resultSize - before.resultSize, is(2L));
+        assertThat(after.queries - before.queries, is(2L));
+    }
+
+    @Test
+    public void records_server_times_of_the_queries() {
+        Snapshot before = snapshot("UserRepositoryNeo4j.createUsers");
+        List<User> users = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            users.add(
+                    User.withEmailAndUsername("timed" + i + "@example.org", "timed" + i)
+            );
+        }
+        userRepository().createUsers(users, 5000);
+        Snapshot after = snapshot("UserRepositoryNeo4j.createUsers");
+        assertThat(after.queries - before.queries, is(1L));
+        assertThat(
+                after.resultAvailableAfter + after.resultConsumedAfter,
+                greaterThan(before.resultAvailableAfter + before.resultConsumedAfter)
+        );
+    }
+
+    @Test
+    public void counts_errors() {
+        Snapshot before = snapshot("UserRepositoryNeo4j.findByUsername");
+        try {
+            userRepository().findByUsername("not_a_user");
+            fail();
+        } catch (NonExistingUserException expected) {
+            // counted as an error
+        }
+        Snapshot after = snapshot("UserRepositoryNeo4j.findByUsername");
+        assertThat(after.calls - before.calls, is(1L));
+        assertThat(after.errors - before.errors, is(1L));
+        assertThat(after.resultSize - before.resultSize, is(0L));
+    }
+
+    @Test
+    public void result_size_of_a_batch_is_its_number_of_users() {
+        Snapshot before = snapshot("UserRepositoryNeo4j.findByUsernames");
+        userRepository().findByUsernames(
+                Arrays.asList("user1", "user2", "user3", "not_a_user")
+        );
+        Snapshot after = snapshot("UserRepositoryNeo4j.findByUsernames");
+        assertThat(after.calls - before.calls, is(1L));
+        assertThat(after.resultSize - before.resultSize, is(3L));
+        assertThat(after.queries - before.queries, is(1L));
+    }
+
+    @Test
+    public void records_friend_manager_methods() {
+        FriendManager friendManager = neo4j.injector().getInstance(
+                FriendManagerFactory.class
+        ).forUser(EmbeddedNeo4j.user(4));
+        Snapshot addBefore = snapshot("FriendManagerNeo4j.add");
+        Snapshot listBefore = snapshot("FriendManagerNeo4j.list");
+        Snapshot statusBefore = snapshot("FriendManagerNeo4j.getStatusWithUser");
+        friendManager.add(EmbeddedNeo4j.user(5));
+        friendManager.add(EmbeddedNeo4j.user(6));
+        friendManager.list();
+        friendManager.getStatusWithUser(EmbeddedNeo4j.user(5));
+        assertThat(snapshot("FriendManagerNeo4j.add").calls - addBefore.calls, is(2L));
+        Snapshot listAfter = snapshot("FriendManagerNeo4j.list");
+        assertThat(listAfter.calls - listBefore.calls, is(1L));
+        assertThat(listAfter.resultSize - listBefore.resultSize, is(2L));
+        assertThat(listAfter.queries - listBefore.queries, is(1L));
+        Snapshot statusAfter = snapshot("FriendManagerNeo4j.getStatusWithUser");
+        assertThat(statusAfter.calls - statusBefore.calls, is(1L));
+        assertThat(statusAfter.queries - statusBefore.queries, is(1L));
+    }
+
+    @Test
+    public void queries_of_nested_calls_go_to_the_outermost_method() {
+        FriendManager friendManager = neo4j.injector().getInstance(
+                FriendManagerFactory.class
+        ).forUser(EmbeddedNeo4j.user(7));
+        Snapshot addBefore = snapshot("FriendManagerNeo4j.add");
+        Snapshot addAndGetStatusBefore = snapshot("FriendManagerNeo4j.addAndGetStatus");
+        friendManager.add(EmbeddedNeo4j.user(8));
+        assertThat(snapshot("FriendManagerNeo4j.add").queries - addBefore.queries, is(1L));
+        assertThat(
+                snapshot("FriendManagerNeo4j.addAndGetStatus").queries - addAndGetStatusBefore.queries,
+                is(0L)
+        );
+    }
+
+    @Test
+    public void nothing_is_intercepted_nor_observed_when_disabled() {
+        Injector injector = Guice.createInjector(
+                new Neo4jUserRepositoryModule(),
+                binder -> binder.bind(Driver.class).toInstance(neo4j.driver())
+        );
+        assertThat(
+                injector.getInstance(UserRepositoryNeo4j.class).getClass() == UserRepositoryNeo4j.class,
+                is(true)
+        );
+        try (Session session = injector.getInstance(Neo4jSessions.class).read()) {
+            assertThat(session instanceof ObservedSession, is(false));
+        }
+        Long callsBefore = snapshot("UserRepositoryNeo4j.findByUsername").calls;
+        injector.getInstance(UserRepositoryNeo4j.class).findByUsername("user1");
+        assertThat(snapshot("UserRepositoryNeo4j.findByUsername").calls, is(callsBefore));
+    }
+
+    private static UserRepositoryNeo4j userRepository() {
+        return neo4j.userRepository();
+    }
+
+    private static Snapshot snapshot(String method) {
+        return new Snapshot(
+                metrics.get(method)
+        );
+    }
+
+    private static class Snapshot {
+        private final Long calls, errors, resultSize, queries, resultAvailableAfter, resultConsumedAfter;
+
+        private Snapshot(InMemoryRepositoryMetrics.MethodMetrics methodMetrics) {
+            calls = methodMetrics == null ? 0L : methodMetrics.getCalls();
+            errors = methodMetrics == null ? 0L : methodMetrics.getErrors();
+            resultSize = methodMetrics == null ? 0L : methodMetrics.getTotalResultSize();
+            queries = methodMetrics == null ? 0L : methodMetrics.getQueries();
+            resultAvailableAfter = methodMetrics == null ? 0L : methodMetrics.getTotalResultAvailableAfterInMillis();
+            resultConsumedAfter = methodMetrics == null ? 0L : methodMetrics.getTotalResultConsumedAfterInMillis();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void concurrent_loads_of_a_key_share_one_call() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        AtomicInteger numberOfCalls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> singleFlight.load("key", null, () -> {
+            numberOfCalls.incrementAndGet();
+            await(release);
+            return "value";
+        }));
+        waitUntilInFlight(singleFlight, 1);
+        Future<String> second = startWaiting(() -> singleFlight.load("key", null, () -> {
+            numberOfCalls.incrementAndGet();
+            return "other value";
+        }));
+        release.countDown();
+        assertThat(first.get(), is("value"));
+        assertThat(second.get(), is("value"));
+        assertThat(numberOfCalls.get(), is(1));
+        assertThat(singleFlight.numberInFlight(), is(0));
+    }
+
+    @Test
+    public void callers_sharing_a_failed_load_get_its_exception() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        IllegalStateException failure = new IllegalStateException("failed load");
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> singleFlight.load("key", null, () -> {
+            await(release);
+            throw failure;
+        }));
+        waitUntilInFlight(singleFlight, 1);
+        Future<String> second = startWaiting(() -> singleFlight.load("key", null, () -> "value"));
+        release.countDown();
+        assertThat(causeOf(first), is(sameInstance(failure)));
+        assertThat(causeOf(second), is(sameInstance(failure)));
+        assertThat(singleFlight.numberInFlight(), is(0));
+        assertThat(singleFlight.load("key", null, () -> "value"), is("value"));
+    }
+
+    @Test
+    public void forgotten_load_is_not_shared() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> singleFlight.load("key", null, () -> {
+            await(release);
+            return "before write";
+        }));
+        waitUntilInFlight(singleFlight, 1);
+        singleFlight.forget("key");
+        assertThat(singleFlight.load("key", null, () -> "after write"), is("after write"));
+        release.countDown();
+        assertThat(first.get(), is("before write"));
+    }
+
+    @Test
+    public void loads_of_other_variants_are_not_shared() throws Exception {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executor.submit(() -> singleFlight.load("key", "page 1", () -> {
+            await(release);
+            return "page 1";
+        }));
+        waitUntilInFlight(singleFlight, 1);
+        assertThat(singleFlight.load("key", "page 2", () -> "page 2"), is("page 2"));
+        release.countDown();
+        assertThat(first.get(), is("page 1"));
+    }
+
+    @Test
+    public void callers_sharing_a_user_lookup_get_their_own_copy() throws Exception {
+        InFlightLookups inFlightLookups = new InFlightLookups(true);
+        User user = User.withEmailAndUsername("shared@example.org", "shared");
+        CountDownLatch release = new CountDownLatch(1);
+        Future<User> first = executor.submit(() -> inFlightLookups.loadUser("shared", null, () -> {
+            await(release);
+            return user;
+        }));
+        waitUntilInFlight(inFlightLookups.usersByUsername, 1);
+        Future<User> second = startWaiting(() -> inFlightLookups.loadUser("shared", null, () -> user));
+        release.countDown();
+        assertThat(first.get().username(), is("shared"));
+        assertThat(second.get().username(), is("shared"));
+        assertThat(first.get(), is(not(sameInstance(user))));
+        assertThat(first.get(), is(not(sameInstance(second.get()))));
+    }
+
+    private <T> Future<T> startWaiting(Callable<T> task) throws InterruptedException {
+        AtomicInteger started = new AtomicInteger();
+        Thread[] caller = new Thread[1];
+        Future<T> future = executor.submit(() -> {
+            caller[0] = Thread.currentThread();
+            started.incrementAndGet();
+            return task.call();
+        });
+        while (started.get() == 0) {
+            Thread.sleep(1);
+        }
+        while (caller[0].getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        return future;
+    }
+
+    private static void waitUntilInFlight(SingleFlight<?, ?> singleFlight, Integer numberInFlight) throws InterruptedException {
+        while (!singleFlight.numberInFlight().equals(numberInFlight)) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static Throwable causeOf(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+            fail();
+            return null;
+        } catch (ExecutionException exception) {
+            return exception.getCause();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright Vincent Blouin under the GPL License version 3
+ */
+
+package guru.bubl.module.neo4j_user_repository;
+
+import guru.bubl.module.model.User;
+import guru.bubl.module.repository.user.ExistingUserException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+public class UserRepositoryNeo4jTest {
+
+    private static EmbeddedNeo4j neo4j;
+
+    private static UserRepositoryNeo4j userRepository;
+
+    @BeforeClass
+    public static void beforeClass() {
+        neo4j = new EmbeddedNeo4j();
+        userRepository = neo4j.userRepository();
+    }
+
+    @AfterClass
+    public static void afterClass() {
+        neo4j.close();
+    }
+
+    @Test
+    public void created_user_is_found() {
+        User user = user("created");
+        userRepository.createUser(user);
+        assertThat(userRepository.findByUsername("created").email(), is(user.email()));
+        assertThat(userRepository.findByEmail(user.email()).username(), is("created"));
+    }
+
+    @Test
+    public void user_with_a_taken_username_is_rejected() {
+        userRepository.createUser(user("taken"));
+        try {
+            userRepository.createUser(
+                    User.withEmailAndUsername("other@example.org", "taken")
+            );
+            fail();
+        } catch (ExistingUserException expected) {
+            // the username belongs to the first user
+        }
+        assertThat(userRepository.emailExists("other@example.org"), is(false));
+    }
+
+    @Test
+    public void user_with_a_taken_email_is_rejected() {
+        userRepository.createUser(user("email_owner"));
+        try {
+            userRepository.createUser(
+                    User.withEmailAndUsername("email_owner@example.org", "email_thief")
+            );
+            fail();
+        } catch (ExistingUserException expected) {
+            // the email belongs to the first user
+        }
+        assertThat(userRepository.usernameExists("email_thief"), is(false));
+    }
+
+    @Test
+    public void concurrent_creations_of_a_user_create_it_once() throws Exception {
+        List<Boolean> outcomes = concurrently(8, () -> {
+            try {
+                userRepository.createUser(user("raced"));
+                return true;
+            } catch (ExistingUserException expected) {
+                return false;
+            }
+        });
+        Integer created = 0;
+        for (Boolean outcome : outcomes) {
+            created += outcome ? 1 : 0;
+        }
+        assertThat(created, is(1));
+    }
+
+    @Test
+    public void batch_creation_reports_each_user() {
+        userRepository.createUser(user("batch_existing"));
+        List<User> users = new ArrayList<>();
+        users.add(user("batch_new1"));
+        users.add(user("batch_existing"));
+        users.add(User.withEmailAndUsername("batch_new1@example.org", "batch_same_email"));
+        users.add(user("batch_twice"));
+        users.add(User.withEmailAndUsername("batch_twice_other@example.org", "batch_twice"));
+        users.add(user("batch_new2"));
+        UserBatchResult result = userRepository.createUsers(users, 2);
+        assertThat(
+                result.getUsers().keySet(),
+                is((Set<String>) new HashSet<>(Arrays.asList("batch_new1", "batch_new2")))
+        );
+        assertThat(
+                result.getRejected(),
+                is((Set<String>) new HashSet<>(Arrays.asList("batch_existing", "batch_same_email", "batch_twice")))
+        );
+        assertThat(userRepository.usernameExists("batch_new2"), is(true));
+        assertThat(userRepository.usernameExists("batch_same_email"), is(false));
+        assertThat(userRepository.usernameExists("batch_twice"), is(false));
+    }
+
+    @Test
+    public void batch_lookups_report_each_user() {
+        userRepository.createUser(user("lookup1"));
+        userRepository.createUser(user("lookup2"));
+        UserBatchResult byUsername = userRepository.findByUsernames(
+                Arrays.asList("lookup1", "lookup2", "lookup_missing"),
+                1
+        );
+        assertThat(byUsername.getUsers().get("lookup2").email(), is("lookup2@example.org"));
+        assertThat(byUsername.getUsers().size(), is(2));
+        assertThat(byUsername.getRejected(), is((Set<String>) new HashSet<>(Arrays.asList("lookup_missing"))));
+        UserBatchResult byEmail = userRepository.findByEmails(
+                Arrays.asList("lookup1@example.org", "missing@example.org")
+        );
+        assertThat(byEmail.getUsers().get("lookup1@example.org").username(), is("lookup1"));
+        assertThat(byEmail.getRejected(), is((Set<String>) new HashSet<>(Arrays.asList("missing@example.org"))));
+    }
+
+    static <T> List<T> concurrently(Integer numberOfThreads, Callable<T> task) throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < numberOfThreads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static User user(String username) {
+        return User.withEmailAndUsername(
+                username + "@example.org",
+                username
+        );
+    }
+}